@@ -0,0 +1,155 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance.benchmarks;
+
+import com.basistech.relevance.AnalyzerFactory;
+import com.basistech.relevance.ChainSpec;
+import com.google.common.base.Charsets;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of analysis chains built by {@link AnalyzerFactory}. Each chain runs over its own
+ * corpus, either as whole documents or cut into query-sized strings. Three variants separate
+ * the cost of analysis from the cost of getting an analyzer:
+ * <ul>
+ * <li>reusedAnalyzer: one analyzer for the whole run; the steady state.</li>
+ * <li>freshAnalyzer: newAnalyzer() for every operation, with the factory chain cache warm,
+ * so each operation also builds new token stream components.</li>
+ * <li>uncachedChain: as freshAnalyzer but with the chain cache off, so each operation also
+ * looks up and constructs every factory.</li>
+ * </ul>
+ * The tokens and bytes counters are reported as rates; {@link BenchmarkMain} turns them, and the
+ * GC profiler's allocation figures, into per-token numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+    @Param({"english", "german", "russian", "japanese", "chinese", "html", "icu"})
+    public String chain;
+
+    @Param({"document", "query"})
+    public String size;
+
+    private AnalyzerFactory factory;
+    private AnalyzerFactory uncachedFactory;
+    private ChainSpec spec;
+    private Analyzer analyzer;
+    private String[] texts;
+    private int[] textBytes;
+    private int next;
+
+    /**
+     * Per-iteration counts, which JMH divides by the iteration time and reports as per-second
+     * rates alongside the operation rate.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long tokens;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        factory = new AnalyzerFactory();
+        uncachedFactory = new AnalyzerFactory();
+        uncachedFactory.setChainCacheSize(0);
+        spec = Chains.spec(chain);
+        analyzer = factory.newAnalyzer(spec);
+        String corpus = Chains.corpus(chain);
+        texts = "query".equals(size) ? Chains.queries(corpus) : new String[] {corpus};
+        textBytes = new int[texts.length];
+        for (int x = 0; x < texts.length; x++) {
+            textBytes[x] = texts[x].getBytes(Charsets.UTF_8).length;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        analyzer.close();
+    }
+
+    @Benchmark
+    public long reusedAnalyzer(Counters counters) throws IOException {
+        return analyze(analyzer, counters);
+    }
+
+    @Benchmark
+    public long freshAnalyzer(Counters counters) throws IOException {
+        Analyzer fresh = factory.newAnalyzer(spec);
+        try {
+            return analyze(fresh, counters);
+        } finally {
+            fresh.close();
+        }
+    }
+
+    @Benchmark
+    public long uncachedChain(Counters counters) throws IOException {
+        Analyzer fresh = uncachedFactory.newAnalyzer(spec);
+        try {
+            return analyze(fresh, counters);
+        } finally {
+            fresh.close();
+        }
+    }
+
+    private long analyze(Analyzer chainAnalyzer, Counters counters) throws IOException {
+        int index = next;
+        next = (next + 1) % texts.length;
+        long count = 0;
+        TokenStream stream = chainAnalyzer.tokenStream("text", texts[index]);
+        try {
+            stream.reset();
+            while (stream.incrementToken()) {
+                count++;
+            }
+            stream.end();
+        } finally {
+            stream.close();
+        }
+        counters.tokens += count;
+        counters.bytes += textBytes[index];
+        return count;
+    }
+}
@@ -0,0 +1,72 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks with the GC profiler, then prints a per-chain summary of tokens/sec,
+ * bytes/sec, ns/token and bytes allocated per token. Takes the usual JMH command line, so for
+ * example {@code -p chain=english,german} narrows the run.
+ */
+public final class BenchmarkMain {
+    private static final String ALLOCATION = "·gc.alloc.rate.norm";
+
+    private BenchmarkMain() {
+        //
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(AnalysisBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        System.out.println();
+        System.out.println(String.format("%-16s %-10s %-9s %14s %14s %10s %14s",
+                "benchmark", "chain", "size", "tokens/sec", "bytes/sec", "ns/token", "alloc B/token"));
+        for (RunResult result : results) {
+            String benchmark = result.getParams().getBenchmark();
+            benchmark = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+            Map<String, Result> secondary = result.getSecondaryResults();
+            double operations = result.getPrimaryResult().getScore();
+            double tokens = score(secondary, "tokens");
+            double bytes = score(secondary, "bytes");
+            double tokensPerOperation = tokens / operations;
+            double allocation = score(secondary, ALLOCATION) / tokensPerOperation;
+            System.out.println(String.format("%-16s %-10s %-9s %14.0f %14.0f %10.1f %14.1f",
+                    benchmark, result.getParams().getParam("chain"), result.getParams().getParam("size"),
+                    tokens, bytes, 1e9 / tokens, allocation));
+        }
+    }
+
+    private static double score(Map<String, Result> results, String name) {
+        Result result = results.get(name);
+        return result == null ? Double.NaN : result.getScore();
+    }
+}
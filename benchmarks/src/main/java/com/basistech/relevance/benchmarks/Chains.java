@@ -0,0 +1,127 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance.benchmarks;
+
+import com.basistech.relevance.ChainSpec;
+import com.basistech.relevance.ComponentSpec;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The chains the benchmarks exercise, each paired with a bundled corpus in the script and
+ * language it is meant for.
+ */
+final class Chains {
+    private static final String MATCH_VERSION = "LUCENE_44";
+
+    private Chains() {
+        // utility
+    }
+
+    static ChainSpec spec(String chain) {
+        switch (chain) {
+        case "english":
+            return chain(null, "standard", "englishpossessive", "lowercase", "porterstem");
+        case "german":
+            return chain(null, "standard", "lowercase", "germannormalization", "germanlightstem");
+        case "russian":
+            return chain(null, "standard", "lowercase", "russianlightstem");
+        case "japanese":
+            return chain(null, "standard", "cjkwidth", "lowercase", "cjkbigram");
+        case "chinese":
+            return chain(null, "standard", "cjkbigram");
+        case "html":
+            return chain("htmlstrip", "standard", "lowercase");
+        case "icu":
+            return chain(null, "standard", "icufolding");
+        default:
+            throw new IllegalArgumentException("No chain " + chain);
+        }
+    }
+
+    static String corpus(String chain) throws IOException {
+        String name;
+        switch (chain) {
+        case "english":
+            name = "en";
+            break;
+        case "german":
+        case "icu":
+            name = "de";
+            break;
+        case "russian":
+            name = "ru";
+            break;
+        case "japanese":
+            name = "ja";
+            break;
+        case "chinese":
+            name = "zh";
+            break;
+        case "html":
+            name = "html";
+            break;
+        default:
+            throw new IllegalArgumentException("No chain " + chain);
+        }
+        return Resources.toString(Resources.getResource(Chains.class, "/corpora/" + name + ".txt"), Charsets.UTF_8);
+    }
+
+    /**
+     * Cut a corpus into query-sized pieces: a piece ends at the first whitespace after 16 chars,
+     * or at 24 chars in text without spaces.
+     */
+    static String[] queries(String corpus) {
+        List<String> queries = Lists.newArrayList();
+        int start = 0;
+        while (start < corpus.length()) {
+            int end = Math.min(start + 16, corpus.length());
+            while (end < corpus.length() && end - start < 24 && !Character.isWhitespace(corpus.charAt(end))) {
+                end++;
+            }
+            String query = corpus.substring(start, end).trim();
+            if (query.length() > 0) {
+                queries.add(query);
+            }
+            start = end;
+        }
+        return queries.toArray(new String[queries.size()]);
+    }
+
+    private static ChainSpec chain(String charFilter, String tokenizer, String... tokenFilters) {
+        List<ComponentSpec> charFilters = Lists.newArrayList();
+        if (charFilter != null) {
+            charFilters.add(component(charFilter));
+        }
+        List<ComponentSpec> filters = Lists.newArrayList();
+        for (String tokenFilter : tokenFilters) {
+            filters.add(component(tokenFilter));
+        }
+        return new ChainSpec(charFilters, component(tokenizer), filters);
+    }
+
+    private static ComponentSpec component(String name) {
+        Map<String, String> options = new TreeMap<String, String>();
+        options.put("luceneMatchVersion", MATCH_VERSION);
+        return new ComponentSpec(name, Collections.unmodifiableMap(options));
+    }
+}
@@ -32,10 +32,14 @@ import org.eclipse.aether.transport.http.HttpTransporterFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+
 /**
  * Code learned from the Aether samples for starting up Aether.
  */
 final class AetherBooter {
+    static final String CENTRAL_URL = "http://repo1.maven.org/maven2/";
+    private static final String OFFLINE_PROTOCOLS_PROPERTY = "aether.offline.protocols";
     private static final Logger LOG = LoggerFactory.getLogger(AetherBooter.class);
     private AetherBooter() {
         // private for utility class
@@ -59,17 +63,33 @@ final class AetherBooter {
     }
 
     public static DefaultRepositorySystemSession newRepositorySystemSession(RepositorySystem system)
+    {
+        return newRepositorySystemSession(system, false);
+    }
+
+    /**
+     * @param offline if true, nothing is fetched over the network: artifacts come from the local
+     * repository, whichever remote they were first downloaded from, or from file: repositories.
+     */
+    public static DefaultRepositorySystemSession newRepositorySystemSession(RepositorySystem system, boolean offline)
     {
         DefaultRepositorySystemSession session = MavenRepositorySystemUtils.newSession();
-        String home = System.getProperty("user.home");
 
-        LocalRepository localRepo = new LocalRepository(home + "/.m2/repository");
+        /*
+         * The default, 'enhanced', local repository only serves an artifact for the remote it came
+         * from, and would send an offline session looking for it elsewhere when the mirrors change.
+         */
+        LocalRepository localRepo = new LocalRepository(localRepositoryDirectory(), offline ? "simple" : "");
         session.setLocalRepositoryManager(system.newLocalRepositoryManager(session, localRepo));
+        if (offline) {
+            session.setOffline(true);
+            session.setConfigProperty(OFFLINE_PROTOCOLS_PROPERTY, "file");
+        }
 
         session.setTransferListener(new AbstractTransferListener() {
             @Override
             public void transferStarted(TransferEvent event) throws TransferCancelledException {
-                LOG.info("transferStarted []", event.getResource());
+                LOG.info("transferStarted {}", event.getResource());
             }
             @Override
             public void transferCorrupted(TransferEvent event) throws TransferCancelledException {
@@ -96,7 +116,15 @@ final class AetherBooter {
         return session;
     }
 
+    /**
+     * @return the directory of the local repository. Deliberately free of Aether objects, so
+     * that callers can consult it without booting the repository system.
+     */
+    static File localRepositoryDirectory() {
+        return new File(System.getProperty("user.home"), ".m2/repository");
+    }
+
     public static RemoteRepository newCentralRepository() {
-        return new RemoteRepository.Builder("central", "default", "http://repo1.maven.org/maven2/").build();
+        return new RemoteRepository.Builder("central", "default", CENTRAL_URL).build();
     }
 }
@@ -0,0 +1,405 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-running analysis process, so that callers pay for JVM startup, artifact resolution and
+ * a cold JIT once rather than on every call. Serves any number of named chains, over TCP on the
+ * loopback interface or over stdin and stdout.
+ * <p>
+ * The protocol is one line per request and one line per response, in UTF-8. A request is
+ * {@code id TAB chain TAB text}. A response is {@code id TAB OK TAB count} followed by
+ * {@code TAB term TAB type TAB start TAB end} for each token, or {@code id TAB ERROR TAB message}.
+ * Text and terms escape backslash, tab, newline and carriage return as {@code \\ \t \n \r}.
+ * Requests on one connection are analyzed concurrently, and responses come back as they are
+ * ready, so a client may pipeline requests and match responses by id.
+ * <p>
+ * The chains file has a line per chain, {@code name: -charfilter ... -tokenizer ... -tokenfilter ...},
+ * in Driver's syntax. Blank lines and lines starting with # are ignored.
+ */
+public final class AnalysisServer {
+    private static final Logger LOG = LoggerFactory.getLogger(AnalysisServer.class);
+    private static final int DEFAULT_PORT = 7711;
+    private static final int MAX_PENDING_PER_CONNECTION = 1024;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int CACHED_CHARS = 256;
+    private static final String WARMUP_TEXT = "The quick brown fox jumps over the lazy dog. <b>1,234.56</b> e-mail: someone@example.com";
+
+    private final Map<String, Analyzer> analyzers;
+    private final ExecutorService workers;
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    /**
+     * Build every chain up front, so that a bad chain fails at startup and the first request
+     * pays for nothing.
+     */
+    public AnalysisServer(AnalyzerFactory analyzerFactory, Map<String, ChainSpec> chains, int threads) {
+        this(analyzerFactory, chains, threads, 0);
+    }
+
+    /**
+     * @param cacheBytes if positive, each chain remembers its output for short requests, in up to this much memory.
+     */
+    public AnalysisServer(AnalyzerFactory analyzerFactory, Map<String, ChainSpec> chains, int threads, long cacheBytes) {
+        Map<String, Analyzer> built = Maps.newLinkedHashMap();
+        for (Map.Entry<String, ChainSpec> me : chains.entrySet()) {
+            Analyzer analyzer = analyzerFactory.newAnalyzer(me.getValue());
+            long start = System.nanoTime();
+            for (int x = 0; x < WARMUP_ROUNDS; x++) {
+                analyze(analyzer, WARMUP_TEXT);
+            }
+            LOG.info("Chain {} ready; warmup took {}ms", me.getKey(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            // wrapped after the warmup, which would otherwise be all cache hits after the first round.
+            if (cacheBytes > 0) {
+                analyzer = new CachingAnalyzer(analyzer, CACHED_CHARS, cacheBytes);
+            }
+            built.put(me.getKey(), analyzer);
+        }
+        analyzers = Collections.unmodifiableMap(built);
+        // a fixed pool, so that the analyzers' per-thread components stay built.
+        workers = Executors.newFixedThreadPool(threads);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        boolean stdin = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File lockFile = null;
+        long cacheBytes = 0;
+        int argx = 0;
+        while (argx < args.length && args[argx].startsWith("--")) {
+            String arg = args[argx];
+            if ("--port".equals(arg) && argx < args.length - 1) {
+                port = Integer.parseInt(args[++argx]);
+            } else if ("--threads".equals(arg) && argx < args.length - 1) {
+                threads = Integer.parseInt(args[++argx]);
+            } else if ("--lock".equals(arg) && argx < args.length - 1) {
+                lockFile = new File(args[++argx]);
+            } else if ("--snapshot".equals(arg) && argx < args.length - 1) {
+                lockFile = new File(args[++argx], SnapshotBuilder.LOCK);
+            } else if ("--cache-mb".equals(arg) && argx < args.length - 1) {
+                cacheBytes = Long.parseLong(args[++argx]) << 20;
+            } else if ("--stdin".equals(arg)) {
+                stdin = true;
+            } else {
+                usage();
+                System.exit(1);
+            }
+            argx++;
+        }
+        if (argx >= args.length) {
+            usage();
+            System.exit(1);
+        }
+
+        Map<String, ChainSpec> chains = readChains(new File(args[argx++]));
+        AnalyzerFactory analyzerFactory = new AnalyzerFactory();
+        analyzerFactory.setArtifacts(Lists.newArrayList(Arrays.asList(args).subList(argx, args.length)));
+        analyzerFactory.setClasspathLockFile(lockFile);
+        analyzerFactory.initialize();
+        AnalysisServer server = new AnalysisServer(analyzerFactory, chains, threads, cacheBytes);
+        if (stdin) {
+            server.serve(System.in, System.out);
+            server.shutdown();
+        } else {
+            server.listen(port);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: AnalysisServer [--port n | --stdin] [--threads n] [--cache-mb n] [--lock lockFile | --snapshot dir] chainsFile group:artifact:version ...");
+    }
+
+    /**
+     * Read a chains file; see the class comment for the format.
+     */
+    public static Map<String, ChainSpec> readChains(File file) throws IOException {
+        Map<String, ChainSpec> chains = Maps.newLinkedHashMap();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                int colon = line.indexOf(':');
+                if (colon < 1) {
+                    throw new IOException(String.format("%s:%d: expected name: chain", file, lineNumber));
+                }
+                String name = line.substring(0, colon).trim();
+                List<String> words = Arrays.asList(line.substring(colon + 1).trim().split("\\s+"));
+                try {
+                    chains.put(name, ChainSpec.parse(words));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(String.format("%s:%d: %s", file, lineNumber, e.getMessage()));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return chains;
+    }
+
+    /**
+     * Accept connections on the loopback interface until the process is killed.
+     */
+    public void listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        LOG.info("Listening on {}", serverSocket.getLocalSocketAddress());
+        while (true) {
+            final Socket socket = serverSocket.accept();
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket.getInputStream(), socket.getOutputStream());
+                    } catch (IOException e) {
+                        LOG.warn("Connection from {} failed", socket.getRemoteSocketAddress(), e);
+                    } finally {
+                        Closeables.closeQuietly(socket);
+                    }
+                }
+            }, "analysis-connection-" + threadNumber.incrementAndGet());
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    /**
+     * Serve one stream of requests until end of input, and wait for the last response.
+     */
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+        // bounds the responses held for a client that sends faster than it reads.
+        final Semaphore pending = new Semaphore(MAX_PENDING_PER_CONNECTION);
+        final AtomicInteger inFlight = new AtomicInteger();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.length() == 0) {
+                continue;
+            }
+            final String request = line;
+            pending.acquireUninterruptibly();
+            inFlight.incrementAndGet();
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            String response;
+                            try {
+                                response = respond(request);
+                            } catch (Throwable t) {
+                                // e.g. a LinkageError from a component; the client still gets its answer.
+                                LOG.error("Request {} failed", requestId(request), t);
+                                response = requestId(request) + "\tERROR\t" + escape(String.valueOf(t));
+                            }
+                            write(writer, response, inFlight);
+                        } catch (IOException e) {
+                            LOG.debug("Failed to write response", e);
+                        } finally {
+                            pending.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                try {
+                    write(writer, requestId(request) + "\tERROR\tserver is shutting down", inFlight);
+                } finally {
+                    pending.release();
+                }
+            }
+        }
+        pending.acquireUninterruptibly(MAX_PENDING_PER_CONNECTION);
+        synchronized (writer) {
+            writer.flush();
+        }
+    }
+
+    private static void write(Writer writer, String response, AtomicInteger inFlight) throws IOException {
+        synchronized (writer) {
+            try {
+                writer.write(response);
+                writer.write('\n');
+            } finally {
+                // flush once nothing else is about to be written.
+                if (inFlight.decrementAndGet() == 0) {
+                    writer.flush();
+                }
+            }
+        }
+    }
+
+    private static String requestId(String request) {
+        int tab = request.indexOf('\t');
+        return tab < 0 ? request : request.substring(0, tab);
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+        for (Map.Entry<String, Analyzer> me : analyzers.entrySet()) {
+            if (me.getValue() instanceof CachingAnalyzer) {
+                LOG.info("Chain {} cache: {}", me.getKey(), ((CachingAnalyzer) me.getValue()).statistics());
+            }
+        }
+    }
+
+    String respond(String request) {
+        int tab1 = request.indexOf('\t');
+        int tab2 = tab1 < 0 ? -1 : request.indexOf('\t', tab1 + 1);
+        if (tab2 < 0) {
+            return requestId(request) + "\tERROR\texpected id TAB chain TAB text";
+        }
+        String id = request.substring(0, tab1);
+        String chain = request.substring(tab1 + 1, tab2);
+        Analyzer analyzer = analyzers.get(chain);
+        if (analyzer == null) {
+            return id + "\tERROR\tno chain " + escape(chain);
+        }
+        try {
+            return id + "\tOK\t" + analyze(analyzer, unescape(request.substring(tab2 + 1)));
+        } catch (RuntimeException e) {
+            LOG.warn("Request {} failed", id, e);
+            return id + "\tERROR\t" + escape(String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * @return the count and the tokens, in the response format.
+     */
+    private static String analyze(Analyzer analyzer, String text) {
+        StringBuilder tokens = new StringBuilder();
+        int count = 0;
+        try {
+            TokenStream stream = analyzer.tokenStream("text", new StringReader(text));
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            TypeAttribute type = stream.addAttribute(TypeAttribute.class);
+            OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+            try {
+                stream.reset();
+                while (stream.incrementToken()) {
+                    count++;
+                    tokens.append('\t').append(escape(term));
+                    tokens.append('\t').append(type.type());
+                    tokens.append('\t').append(offset.startOffset());
+                    tokens.append('\t').append(offset.endOffset());
+                }
+                stream.end();
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            // reading a string.
+            throw new RuntimeException(e);
+        }
+        return count + tokens.toString();
+    }
+
+    static String escape(CharSequence text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int x = 0; x < text.length(); x++) {
+            char c = text.charAt(x);
+            switch (c) {
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            default:
+                sb.append(c);
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int x = 0; x < text.length(); x++) {
+            char c = text.charAt(x);
+            if (c == '\\' && x < text.length() - 1) {
+                char next = text.charAt(++x);
+                switch (next) {
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                default:
+                    sb.append(next);
+                    break;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,127 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import org.apache.lucene.analysis.util.AbstractAnalysisFactory;
+import org.apache.lucene.analysis.util.CharFilterFactory;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+import org.apache.lucene.analysis.util.TokenizerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The three kinds of analysis factory available from one class loader.
+ */
+final class AnalysisSpi {
+    private static final String[] TOKENIZER_SUFFIXES = {"TokenizerFactory"};
+    private static final String[] TOKEN_FILTER_SUFFIXES = {"TokenFilterFactory", "FilterFactory"};
+    private static final String[] CHAR_FILTER_SUFFIXES = {"CharFilterFactory"};
+    // the services visible to a parent class loader, by type; shared by every factory on that parent.
+    private static final ConcurrentMap<ClassLoader, Map<String, List<String>>> PARENT_SERVICES = new MapMaker().weakKeys().makeMap();
+
+    private final ClassLoader classLoader;
+    private final SpiLookup<TokenizerFactory> tokenizers;
+    private final SpiLookup<TokenFilterFactory> tokenFilters;
+    private final SpiLookup<CharFilterFactory> charFilters;
+
+    AnalysisSpi(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+        // the suffixes are the ones Lucene itself strips for each kind of factory.
+        tokenizers = new SpiLookup<TokenizerFactory>(TokenizerFactory.class, TOKENIZER_SUFFIXES, classLoader);
+        tokenFilters = new SpiLookup<TokenFilterFactory>(TokenFilterFactory.class, TOKEN_FILTER_SUFFIXES, classLoader);
+        charFilters = new SpiLookup<CharFilterFactory>(CharFilterFactory.class, CHAR_FILTER_SUFFIXES, classLoader);
+    }
+
+    /**
+     * Look up factories in a class loader made of the given jars over a parent, without scanning
+     * the jars: their registrations come from the index. They come ahead of the parent's, as
+     * they would from {@link ComponentClassLoader#getResources(String)}, so a name registered in
+     * both resolves to the resolved jar's class.
+     */
+    AnalysisSpi(ClassLoader classLoader, List<File> jars, SpiIndex index) {
+        this.classLoader = classLoader;
+        List<Map<String, List<String>>> jarServices = Lists.newArrayList();
+        for (File jar : jars) {
+            jarServices.add(index.services(jar));
+        }
+        tokenizers = new SpiLookup<TokenizerFactory>(TokenizerFactory.class, TOKENIZER_SUFFIXES, classLoader,
+                serviceClassNames(TokenizerFactory.class, classLoader.getParent(), jarServices));
+        tokenFilters = new SpiLookup<TokenFilterFactory>(TokenFilterFactory.class, TOKEN_FILTER_SUFFIXES, classLoader,
+                serviceClassNames(TokenFilterFactory.class, classLoader.getParent(), jarServices));
+        charFilters = new SpiLookup<CharFilterFactory>(CharFilterFactory.class, CHAR_FILTER_SUFFIXES, classLoader,
+                serviceClassNames(CharFilterFactory.class, classLoader.getParent(), jarServices));
+    }
+
+    private static List<String> serviceClassNames(Class<? extends AbstractAnalysisFactory> type, ClassLoader parent, List<Map<String, List<String>>> jarServices) {
+        List<String> classNames = Lists.newArrayList();
+        for (Map<String, List<String>> services : jarServices) {
+            List<String> registered = services.get(type.getName());
+            if (registered != null) {
+                classNames.addAll(registered);
+            }
+        }
+        if (parent != null) {
+            classNames.addAll(parentServices(parent, type.getName()));
+        }
+        return classNames;
+    }
+
+    private static List<String> parentServices(ClassLoader parent, String type) {
+        Map<String, List<String>> byType = PARENT_SERVICES.get(parent);
+        if (byType == null) {
+            PARENT_SERVICES.putIfAbsent(parent, Maps.<String, List<String>>newConcurrentMap());
+            byType = PARENT_SERVICES.get(parent);
+        }
+        List<String> classNames = byType.get(type);
+        if (classNames == null) {
+            classNames = Lists.newArrayList();
+            try {
+                Enumeration<URL> services = parent.getResources("META-INF/services/" + type);
+                while (services.hasMoreElements()) {
+                    classNames.addAll(SpiIndex.readServiceFile(services.nextElement().openStream()));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read the services for " + type, e);
+            }
+            byType.put(type, classNames);
+        }
+        return classNames;
+    }
+
+    ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    SpiLookup<TokenizerFactory> tokenizers() {
+        return tokenizers;
+    }
+
+    SpiLookup<TokenFilterFactory> tokenFilters() {
+        return tokenFilters;
+    }
+
+    SpiLookup<CharFilterFactory> charFilters() {
+        return charFilters;
+    }
+}
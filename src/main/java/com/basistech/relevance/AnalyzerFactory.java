@@ -15,34 +15,41 @@
 package com.basistech.relevance;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.Tokenizer;
-import org.apache.lucene.analysis.util.CharFilterFactory;
-import org.apache.lucene.analysis.util.TokenFilterFactory;
-import org.apache.lucene.analysis.util.TokenizerFactory;
+import org.apache.lucene.analysis.util.ClasspathResourceLoader;
+import org.apache.lucene.analysis.util.FilesystemResourceLoader;
+import org.apache.lucene.analysis.util.ResourceLoader;
 import org.eclipse.aether.DefaultRepositorySystemSession;
 import org.eclipse.aether.RepositorySystem;
 import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.collection.DependencyCollectionException;
 import org.eclipse.aether.graph.Dependency;
 import org.eclipse.aether.graph.DependencyFilter;
+import org.eclipse.aether.graph.DependencyNode;
 import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.repository.RepositoryPolicy;
 import org.eclipse.aether.resolution.ArtifactResult;
 import org.eclipse.aether.resolution.DependencyRequest;
 import org.eclipse.aether.resolution.DependencyResolutionException;
 import org.eclipse.aether.util.artifact.JavaScopes;
 import org.eclipse.aether.util.filter.DependencyFilterUtils;
+import org.eclipse.aether.util.listener.ChainedRepositoryListener;
+import org.eclipse.aether.util.listener.ChainedTransferListener;
 import org.eclipse.aether.util.repository.DefaultMirrorSelector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.Reader;
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLClassLoader;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Factory class to build a Lucene analyzer at arms length. Sort of a bit like a tiny
@@ -52,107 +59,360 @@ import java.util.List;
  */
 public class AnalyzerFactory {
     private static final Logger LOG = LoggerFactory.getLogger(AnalyzerFactory.class);
+    private static final String RESOLVER_THREADS_PROPERTY = "aether.connector.basic.threads";
+    private static final int DEFAULT_RESOLVER_THREADS = 5;
+    private static final int DEFAULT_CHAIN_CACHE_SIZE = 64;
+    private static final Mirror DEFAULT_MIRROR = new Mirror("Nexus", "http://maven.basistech.net/nexus/content/groups/public", "*,!apache.org,!sonar,!apache.snapshots");
     private List<Repository> repositories = Lists.newArrayList();
+    private List<Mirror> mirrors = Lists.newArrayList(DEFAULT_MIRROR);
+    private boolean offline;
+    private String updatePolicy;
     private List<String> artifacts;
-    // note: caller is free to change these between obtaining analyzers!
+    // note: caller is free to change these between obtaining analyzers! Analyzers already made
+    // are unaffected; a ChainHandle is the way to change the chain under running analysis.
     private ComponentSpec tokenizerSpec;
     private List<ComponentSpec> charFilterSpecs = Lists.newArrayList();
     private List<ComponentSpec> tokenFilterSpecs = Lists.newArrayList();
+    private int resolverThreads = DEFAULT_RESOLVER_THREADS;
+    private File classpathLockFile;
+    private File spiIndexDirectory;
+    private AnalysisSpi spi;
+    private List<File> componentJars = Collections.emptyList();
+    private final LruCache<ChainSpec, FactoryChain> chainCache = new LruCache<ChainSpec, FactoryChain>(DEFAULT_CHAIN_CACHE_SIZE);
+    private volatile ResourcePool resourcePool = ResourcePool.shared();
+    private File resourceDirectory;
+    private boolean instrumented;
+    private int samplingPeriod = 1;
+    private final Map<ChainSpec, ChainMetrics> chainMetrics = Maps.newLinkedHashMap();
+    private final ResolutionMetrics resolutionMetrics = new ResolutionMetrics();
 
+    public AnalyzerFactory() {
+        // a chain out of the cache no longer holds its factories in the pool.
+        chainCache.setRemovalListener(new LruCache.RemovalListener<ChainSpec, FactoryChain>() {
+            @Override
+            public void removed(ChainSpec key, FactoryChain value) {
+                value.release();
+            }
+        });
+    }
+
+    /**
+     * Build an analyzer from the current specs. Factory chains are cached by their
+     * full specification, so a repeated call costs no SPI lookups or factory construction.
+     */
     public Analyzer newAnalyzer() {
-        final TokenizerFactory tokenizerFactory = TokenizerFactory.forName(tokenizerSpec.getName(), tokenizerSpec.getOptions());
-        final List<TokenFilterFactory> tokenFilterFactories = Lists.newArrayList();
-        for (ComponentSpec spec : tokenFilterSpecs) {
-            TokenFilterFactory tokenFilterFactory = TokenFilterFactory.forName(spec.getName(), spec.getOptions());
-            tokenFilterFactories.add(tokenFilterFactory);
+        return newAnalyzer(currentChainSpec());
+    }
+
+    private synchronized ChainSpec currentChainSpec() {
+        return new ChainSpec(charFilterSpecs, tokenizerSpec, tokenFilterSpecs);
+    }
+
+    /**
+     * Build and warm a replaceable chain from the current specs.
+     */
+    public ChainHandle newChainHandle() {
+        return newChainHandle(currentChainSpec());
+    }
+
+    /**
+     * Build and warm a replaceable chain; see {@link ChainHandle}. When instrumented, the handle
+     * is registered with JMX.
+     */
+    public ChainHandle newChainHandle(ChainSpec chainSpec) {
+        ChainHandle handle = new ChainHandle(this, chainSpec);
+        if (instrumented) {
+            handle.register(String.format("%08x", System.identityHashCode(handle)));
         }
-        final List<CharFilterFactory> charFilterFactories = Lists.newArrayList();
-        for (ComponentSpec spec : charFilterSpecs) {
-            CharFilterFactory charFilterFactory = CharFilterFactory.forName(spec.getName(), spec.getOptions());
-            charFilterFactories.add(charFilterFactory);
+        return handle;
+    }
+
+    public Analyzer newAnalyzer(ChainSpec chainSpec) {
+        FactoryChain chain = factoryChain(chainSpec);
+        if (instrumented) {
+            return chain.newAnalyzer(getChainMetrics(chainSpec));
         }
+        return chain.newAnalyzer();
+    }
 
-        return new Analyzer() {
-            @Override
-            protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
-                for (CharFilterFactory charFilterFactory : charFilterFactories) {
-                    reader = charFilterFactory.create(reader);
-                }
-                Tokenizer tokenizer = tokenizerFactory.create(reader);
-                TokenStream filter = tokenizer;
-                for (TokenFilterFactory tokenFilterFactory : tokenFilterFactories) {
-                    filter = tokenFilterFactory.create(filter);
+    /**
+     * Build an asynchronous analyzer from the current specs.
+     * @see AsyncAnalyzer#AsyncAnalyzer(Analyzer, String, int, int, AsyncAnalyzer.Overload)
+     */
+    public AsyncAnalyzer newAsyncAnalyzer(String fieldName, int threads, int queueDepth, AsyncAnalyzer.Overload overload) {
+        return new AsyncAnalyzer(newAnalyzer(), fieldName, threads, queueDepth, overload);
+    }
+
+    /**
+     * @return the metrics for a chain, created and registered with JMX on first use. Metrics
+     * outlive eviction of the chain from the cache, so they add up across rebuilds.
+     */
+    public ChainMetrics getChainMetrics(ChainSpec chainSpec) {
+        synchronized (chainMetrics) {
+            ChainMetrics metrics = chainMetrics.get(chainSpec);
+            if (metrics == null) {
+                metrics = new ChainMetrics(chainSpec, samplingPeriod);
+                metrics.register(String.format("%08x-%d", System.identityHashCode(this), chainMetrics.size()));
+                chainMetrics.put(chainSpec, metrics);
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * @return the metrics of every chain that instrumented analyzers have been made for.
+     */
+    public List<ChainMetrics> getChainMetrics() {
+        synchronized (chainMetrics) {
+            return Lists.newArrayList(chainMetrics.values());
+        }
+    }
+
+    /**
+     * Drop all chain metrics and unregister them from JMX.
+     */
+    public void clearChainMetrics() {
+        synchronized (chainMetrics) {
+            for (ChainMetrics metrics : chainMetrics.values()) {
+                metrics.unregister();
+            }
+            chainMetrics.clear();
+        }
+    }
 
+    FactoryChain factoryChain(ChainSpec chainSpec) {
+        while (true) {
+            FactoryChain chain = chainCache.get(chainSpec);
+            if (chain != null) {
+                return chain;
+            }
+            AnalysisSpi builtFrom = spi();
+            FactoryChain built = new FactoryChain(chainSpec, builtFrom, resourcePool, resourceLoader(builtFrom));
+            // under the lock that initialize() swaps the SPI and clears the cache with, so that a
+            // chain built from the previous class loader never lands in the cleared cache.
+            synchronized (this) {
+                if (builtFrom == spi) {
+                    chain = chainCache.putIfAbsent(chainSpec, built);
                 }
-                return new TokenStreamComponents(tokenizer, filter);
             }
-        };
+            if (chain != built) {
+                built.release();
+            }
+            if (chain != null) {
+                return chain;
+            }
+        }
+    }
+
+    private ResourceLoader resourceLoader(AnalysisSpi builtFrom) {
+        return new FilesystemResourceLoader(getResourceDirectory(), new ClasspathResourceLoader(builtFrom.getClassLoader()));
+    }
+
+    private synchronized AnalysisSpi spi() {
+        if (spi == null) {
+            // not initialized; make do with whatever this class can see.
+            spi = new AnalysisSpi(AnalyzerFactory.class.getClassLoader());
+        }
+        return spi;
     }
 
+    /**
+     * @return the class loader for the analysis components; the resolved jars once
+     * {@link #initialize()} has run.
+     */
+    public ClassLoader getComponentClassLoader() {
+        return spi().getClassLoader();
+    }
+
+    /**
+     * @return the jars resolved by {@link #initialize()}; empty before.
+     */
+    public synchronized List<File> getComponentJars() {
+        return componentJars;
+    }
+
+    /**
+     * A digest of everything that determines what a chain does: its specification and the
+     * resolved jars, by path, size and modification time. Equal fingerprints mean that anything
+     * derived from the chain's output, such as an index, can be reused.
+     */
+    public String chainFingerprint(ChainSpec chainSpec) {
+        StringBuilder inputs = new StringBuilder(chainSpec.toString());
+        for (File jar : getComponentJars()) {
+            inputs.append('\n').append(jar.getAbsolutePath()).append(' ').append(jar.length()).append(' ').append(jar.lastModified());
+        }
+        return ClasspathLock.digest(inputs.toString());
+    }
+
+    /**
+     * Resolve the artifacts and set up a class loader for them. The class loader, and the
+     * lookup of factories by name, belong to this object; Lucene's global SPI registries are
+     * left alone, so factories with different artifacts can live side by side in one JVM. The
+     * class loader prefers the resolved jars to the application's own copies of the same
+     * artifacts, except for the shared Lucene API; see {@link ComponentClassLoader}.
+     */
     public void initialize() {
-        List<URL> analyzerJars = gatherJarsFromMaven();
+        long initializeStart = System.currentTimeMillis();
+        resolutionMetrics.reset();
+        List<File> jars = null;
+        ClasspathLock lock = null;
+        if (classpathLockFile != null) {
+            long start = System.currentTimeMillis();
+            lock = new ClasspathLock(classpathLockFile, resolutionInputs());
+            jars = lock.read();
+            resolutionMetrics.phase(ResolutionMetrics.Phase.LOCK, System.currentTimeMillis() - start);
+            if (jars != null) {
+                LOG.info("Using {} jars from classpath lock {}", jars.size(), classpathLockFile);
+            }
+        }
+        if (jars == null) {
+            jars = gatherJarsFromMaven();
+            if (lock != null) {
+                lock.write(jars);
+            }
+        }
 
-        ClassLoader componentClassLoader = new URLClassLoader(analyzerJars.toArray(new URL[analyzerJars.size()]));
-        TokenizerFactory.reloadTokenizers(componentClassLoader);
-        TokenFilterFactory.reloadTokenFilters(componentClassLoader);
-        CharFilterFactory.reloadCharFilters(componentClassLoader);
+        long start = System.currentTimeMillis();
+        List<URL> analyzerJars = Lists.newArrayList();
+        for (File jar : jars) {
+            try {
+                analyzerJars.add(jar.toURI().toURL());
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        ClassLoader componentClassLoader = new ComponentClassLoader(analyzerJars.toArray(new URL[analyzerJars.size()]), AnalyzerFactory.class.getClassLoader());
+        resolutionMetrics.phase(ResolutionMetrics.Phase.CLASS_LOADER, System.currentTimeMillis() - start);
+        start = System.currentTimeMillis();
+        SpiIndex spiIndex = new SpiIndex(spiIndexDirectory != null ? spiIndexDirectory : SpiIndex.defaultCacheDirectory());
+        AnalysisSpi newSpi = new AnalysisSpi(componentClassLoader, jars, spiIndex);
+        resolutionMetrics.phase(ResolutionMetrics.Phase.SPI, System.currentTimeMillis() - start);
+        LOG.info("Indexed the analysis services of {} jars in {}ms", jars.size(), System.currentTimeMillis() - start);
+        synchronized (this) {
+            spi = newSpi;
+            componentJars = Collections.unmodifiableList(Lists.newArrayList(jars));
+            // anything cached was built from the previous class loader.
+            chainCache.clear();
+        }
+        resolutionMetrics.initialized(System.currentTimeMillis() - initializeStart);
+        if (instrumented) {
+            // outside the timing; starting the platform MBean server is not cheap.
+            resolutionMetrics.register(String.format("%08x", System.identityHashCode(this)));
+        }
     }
 
-    private List<URL> gatherJarsFromMaven() {
+    /**
+     * @return where the time went in the last {@link #initialize()}; also registered with JMX
+     * when instrumented.
+     */
+    public ResolutionMetrics getResolutionMetrics() {
+        return resolutionMetrics;
+    }
+
+    /**
+     * Everything that determines the outcome of a resolution, as text, for keying the lock.
+     */
+    String resolutionInputs() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("local=").append(AetherBooter.localRepositoryDirectory().getAbsolutePath()).append('\n');
+        sb.append("central=").append(AetherBooter.CENTRAL_URL).append('\n');
+        for (Mirror mirror : mirrors) {
+            sb.append("mirror=").append(mirror).append('\n');
+        }
+        for (Repository repoSpec : repositories) {
+            sb.append("repository=").append(repoSpec.getId()).append(' ').append(repoSpec.getUrl()).append('\n');
+        }
+        for (String artifactSpec : artifacts) {
+            sb.append("artifact=").append(artifactSpec).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private List<File> gatherJarsFromMaven() {
+        long setupStart = System.currentTimeMillis();
         RepositorySystem system = AetherBooter.newRepositorySystem();
 
-        DefaultRepositorySystemSession session = AetherBooter.newRepositorySystemSession(system);
+        DefaultRepositorySystemSession session = AetherBooter.newRepositorySystemSession(system, offline);
+        // the basic connector fans the downloads for one resolution out over this many threads.
+        session.setConfigProperty(RESOLVER_THREADS_PROPERTY, Integer.toString(resolverThreads));
+        session.setTransferListener(ChainedTransferListener.newInstance(session.getTransferListener(), resolutionMetrics.newTransferListener()));
+        session.setRepositoryListener(ChainedRepositoryListener.newInstance(session.getRepositoryListener(), resolutionMetrics.newRepositoryListener()));
+        if (offline) {
+            session.setUpdatePolicy(RepositoryPolicy.UPDATE_POLICY_NEVER);
+        } else if (updatePolicy != null) {
+            session.setUpdatePolicy(updatePolicy);
+        }
         DefaultMirrorSelector mirrorSelector = new DefaultMirrorSelector();
-        //TODO: make this configurable. for now, here's the Basis mirror.
-        /*
-            <mirror>
-      <id>Nexus</id>
-      <name>Nexus Mirror</name>
-      <url>http://maven.basistech.net/nexus/content/groups/public</url>
-      <mirrorOf>*,!apache.org,!sonar,!apache.snapshots</mirrorOf>
-    </mirror>
-         */
-        mirrorSelector = mirrorSelector.add("Nexus", "http://maven.basistech.net/nexus/content/groups/public", null, true, "*,!apache.org,!sonar,!apache.snapshots", null);
+        for (Mirror mirror : mirrors) {
+            mirrorSelector = mirrorSelector.add(mirror.getId(), mirror.getUrl(), null, true, mirror.getMirrorOf(), null);
+        }
         session.setMirrorSelector(mirrorSelector);
-        List<URL> analyzerJars = Lists.newArrayList();
 
+        /*
+         * All the artifacts go into one collect request, as siblings under a dummy root, so that
+         * Aether builds a single graph. Shared transitive dependencies are collected once, version
+         * conflicts are mediated across the whole set, and the resolver hands all the downloads
+         * to the connector in one batch rather than one artifact at a time.
+         */
+        CollectRequest collectRequest = new CollectRequest();
+        List<RemoteRepository> requestRepositories = Lists.newArrayList();
+        requestRepositories.add(AetherBooter.newCentralRepository());
+        for (Repository repoSpec : repositories) {
+            requestRepositories.add(new RemoteRepository.Builder(repoSpec.getId(), "default", repoSpec.getUrl()).build());
+        }
+        /*
+         * Aether applies the session's mirrors to repositories it finds in poms, but not to the
+         * ones in the request; those are swapped here, several repositories sharing one mirror.
+         */
+        Set<String> mirrorIds = Sets.newHashSet();
+        for (RemoteRepository repository : requestRepositories) {
+            RemoteRepository mirror = mirrorSelector.getMirror(repository);
+            if (mirror == null) {
+                collectRequest.addRepository(repository);
+            } else if (mirrorIds.add(mirror.getId())) {
+                collectRequest.addRepository(mirror);
+            }
+        }
         for (String artifactSpec : artifacts) {
             LOG.info("Collecting jars for {}", artifactSpec);
             Artifact artifact = new DefaultArtifact(artifactSpec);
+            collectRequest.addDependency(new Dependency(artifact, JavaScopes.COMPILE));
+        }
 
-            CollectRequest collectRequest = new CollectRequest();
-            RemoteRepository repo = AetherBooter.newCentralRepository();
-            collectRequest.addRepository(repo);
-            for (Repository repoSpec : repositories) {
-                collectRequest.addRepository(new RemoteRepository.Builder(repoSpec.getId(), "default", repoSpec.getUrl()).build());
-            }
-
-            DependencyFilter classpathFilter = DependencyFilterUtils.classpathFilter(JavaScopes.RUNTIME, JavaScopes.COMPILE);
-            collectRequest.setRoot(new Dependency(artifact, JavaScopes.COMPILE));
-
-            DependencyRequest dependencyRequest = new DependencyRequest(collectRequest, classpathFilter);
-
-            List<ArtifactResult> artifactResults;
-            try {
-                artifactResults = system.resolveDependencies(session, dependencyRequest).getArtifactResults();
-            } catch (DependencyResolutionException e) {
-                throw new RuntimeException(e);
-            }
+        long start = System.currentTimeMillis();
+        resolutionMetrics.phase(ResolutionMetrics.Phase.SETUP, start - setupStart);
+        DependencyNode root;
+        try {
+            root = system.collectDependencies(session, collectRequest).getRoot();
+        } catch (DependencyCollectionException e) {
+            throw new RuntimeException(e);
+        }
+        long collected = System.currentTimeMillis();
+        resolutionMetrics.phase(ResolutionMetrics.Phase.COLLECT, collected - start);
 
+        DependencyFilter classpathFilter = DependencyFilterUtils.classpathFilter(JavaScopes.RUNTIME, JavaScopes.COMPILE);
+        DependencyRequest dependencyRequest = new DependencyRequest(root, classpathFilter);
+        List<ArtifactResult> artifactResults;
+        try {
+            artifactResults = system.resolveDependencies(session, dependencyRequest).getArtifactResults();
+        } catch (DependencyResolutionException e) {
+            throw new RuntimeException(e);
+        }
+        resolutionMetrics.phase(ResolutionMetrics.Phase.RESOLVE, System.currentTimeMillis() - collected);
+        LOG.info("Resolved {} artifacts for {} specs in {}ms", new Object[] {artifactResults.size(), artifacts.size(), System.currentTimeMillis() - start});
 
-            for (ArtifactResult artifactResult : artifactResults) {
-                LOG.info("Collecting {}", artifactResult.getArtifact().getFile().getAbsolutePath());
-                try {
-                    analyzerJars.add(artifactResult.getArtifact().getFile().toURI().toURL());
-                } catch (MalformedURLException e) {
-                    throw new RuntimeException(e);
-                }
+        List<File> analyzerJars = Lists.newArrayList();
+        Set<File> seen = Sets.newHashSet();
+        for (ArtifactResult artifactResult : artifactResults) {
+            File file = artifactResult.getArtifact().getFile();
+            if (seen.add(file)) {
+                LOG.info("Collecting {}", file.getAbsolutePath());
+                analyzerJars.add(file);
             }
         }
         return analyzerJars;
     }
 
-
     public List<Repository> getRepositories() {
         return repositories;
     }
@@ -161,6 +421,46 @@ public class AnalyzerFactory {
         this.repositories = repositories;
     }
 
+    public List<Mirror> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * Set the mirrors to resolve through, replacing the default Basis mirror. A file: mirror
+     * of '*' resolves everything from a local directory, with no network access.
+     * @param mirrors the mirrors; the first that matches a repository wins.
+     */
+    public void setMirrors(List<Mirror> mirrors) {
+        this.mirrors = mirrors;
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * Resolve without the network: artifacts must already be in the local repository or in a
+     * file: repository or mirror. Nothing is checked for updates.
+     * @param offline true for offline resolution.
+     */
+    public void setOffline(boolean offline) {
+        this.offline = offline;
+    }
+
+    public String getUpdatePolicy() {
+        return updatePolicy;
+    }
+
+    /**
+     * Override how often every repository is checked for updates, one of the
+     * {@link RepositoryPolicy} update policies. Null (the default) leaves each repository's own.
+     * @param updatePolicy the policy; {@link RepositoryPolicy#UPDATE_POLICY_NEVER} never re-checks
+     * anything already in the local repository.
+     */
+    public void setUpdatePolicy(String updatePolicy) {
+        this.updatePolicy = updatePolicy;
+    }
+
     public List<String> getArtifacts() {
         return artifacts;
     }
@@ -169,27 +469,162 @@ public class AnalyzerFactory {
         this.artifacts = artifacts;
     }
 
-    public ComponentSpec getTokenizerSpec() {
+    public int getResolverThreads() {
+        return resolverThreads;
+    }
+
+    /**
+     * Set the number of concurrent downloads used when resolving the artifacts.
+     * @param resolverThreads thread count, at least 1.
+     */
+    public void setResolverThreads(int resolverThreads) {
+        if (resolverThreads < 1) {
+            throw new IllegalArgumentException("resolverThreads must be positive");
+        }
+        this.resolverThreads = resolverThreads;
+    }
+
+    public File getClasspathLockFile() {
+        return classpathLockFile;
+    }
+
+    /**
+     * Set a file in which to record the resolved classpath. When the file is present and
+     * matches the current artifacts, repositories and mirrors, {@link #initialize()} uses
+     * the recorded jars and skips Aether entirely. Null (the default) always resolves.
+     * @param classpathLockFile the lock file.
+     */
+    public void setClasspathLockFile(File classpathLockFile) {
+        this.classpathLockFile = classpathLockFile;
+    }
+
+    public File getSpiIndexDirectory() {
+        return spiIndexDirectory;
+    }
+
+    /**
+     * Set the directory for SPI indexes of jars that cannot have one written beside them.
+     * Null (the default) means {@link SpiIndex#defaultCacheDirectory()}.
+     * @param spiIndexDirectory the directory.
+     */
+    public void setSpiIndexDirectory(File spiIndexDirectory) {
+        this.spiIndexDirectory = spiIndexDirectory;
+    }
+
+    public int getChainCacheSize() {
+        return chainCache.getMaxSize();
+    }
+
+    /**
+     * Set the number of factory chains kept for reuse; the least recently used is evicted
+     * beyond that. Zero disables the cache.
+     * @param chainCacheSize maximum number of chains.
+     */
+    public void setChainCacheSize(int chainCacheSize) {
+        chainCache.setMaxSize(chainCacheSize);
+    }
+
+    public long getChainCacheHits() {
+        return chainCache.getHits();
+    }
+
+    public long getChainCacheMisses() {
+        return chainCache.getMisses();
+    }
+
+    public long getChainCacheEvictions() {
+        return chainCache.getEvictions();
+    }
+
+    /**
+     * Drop one cached chain, e.g. because a resource file it reads has changed.
+     * @param chainSpec the chain to forget.
+     */
+    public void evictChain(ChainSpec chainSpec) {
+        chainCache.remove(chainSpec);
+    }
+
+    public void clearChainCache() {
+        chainCache.clear();
+    }
+
+    public ResourcePool getResourcePool() {
+        return resourcePool;
+    }
+
+    /**
+     * Set the pool that chains take their factories from; by default {@link ResourcePool#shared()},
+     * so factories, and the resources they load, are shared with every other analyzer factory in
+     * the JVM. Chains already cached keep the factories they have.
+     * @param resourcePool the pool.
+     */
+    public void setResourcePool(ResourcePool resourcePool) {
+        this.resourcePool = resourcePool;
+    }
+
+    public synchronized File getResourceDirectory() {
+        return resourceDirectory;
+    }
+
+    /**
+     * Set the directory that relative resource names in component options, such as a stop
+     * filter's {@code words}, are looked up in before the component class path. Null (the
+     * default) means the working directory.
+     * @param resourceDirectory the directory.
+     */
+    public synchronized void setResourceDirectory(File resourceDirectory) {
+        this.resourceDirectory = resourceDirectory;
+    }
+
+    public boolean isInstrumented() {
+        return instrumented;
+    }
+
+    /**
+     * Instrumented analyzers count tokens and chars at each stage of the chain, and time the
+     * stages, into a {@link ChainMetrics} per chain. This affects analyzers made afterwards.
+     * @param instrumented whether to instrument.
+     */
+    public void setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+    }
+
+    public int getSamplingPeriod() {
+        return samplingPeriod;
+    }
+
+    /**
+     * Time one document in this many; the rest are only counted. Applies to metrics created afterwards.
+     * @param samplingPeriod the period, 1 to time every document.
+     */
+    public void setSamplingPeriod(int samplingPeriod) {
+        if (samplingPeriod < 1) {
+            throw new IllegalArgumentException("samplingPeriod must be positive");
+        }
+        this.samplingPeriod = samplingPeriod;
+    }
+
+    public synchronized ComponentSpec getTokenizerSpec() {
         return tokenizerSpec;
     }
 
-    public void setTokenizerSpec(ComponentSpec tokenizerSpec) {
+    public synchronized void setTokenizerSpec(ComponentSpec tokenizerSpec) {
         this.tokenizerSpec = tokenizerSpec;
     }
 
-    public List<ComponentSpec> getCharFilterSpecs() {
+    public synchronized List<ComponentSpec> getCharFilterSpecs() {
         return charFilterSpecs;
     }
 
-    public void setCharFilterSpecs(List<ComponentSpec> charFilterSpecs) {
+    public synchronized void setCharFilterSpecs(List<ComponentSpec> charFilterSpecs) {
         this.charFilterSpecs = charFilterSpecs;
     }
 
-    public List<ComponentSpec> getTokenFilterSpecs() {
+    public synchronized List<ComponentSpec> getTokenFilterSpecs() {
         return tokenFilterSpecs;
     }
 
-    public void setTokenFilterSpecs(List<ComponentSpec> tokenFilterSpecs) {
+    public synchronized void setTokenFilterSpecs(List<ComponentSpec> tokenFilterSpecs) {
         this.tokenFilterSpecs = tokenFilterSpecs;
     }
 }
@@ -0,0 +1,188 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Analysis off the caller's thread. Text goes to a fixed pool of workers, and comes back as a
+ * {@link ListenableFuture} of its {@link TokenBatch}, so callers can attach a callback with
+ * {@link com.google.common.util.concurrent.Futures#addCallback} rather than block. The workers
+ * share one analyzer, whose per-thread components stay built because the pool's threads live on.
+ * <p>
+ * At most {@code threads + queueDepth} submissions are outstanding; beyond that, a submission
+ * either fails with {@link RejectedExecutionException} or waits, by the {@link Overload} policy.
+ * A batch of many short texts is one submission, analyzed by one worker in one go.
+ */
+public final class AsyncAnalyzer {
+    /**
+     * What a submission does when the queue is full.
+     */
+    public enum Overload {
+        /** throw {@link RejectedExecutionException}. */
+        REJECT,
+        /** wait for room. */
+        BLOCK
+    }
+
+    private final Analyzer analyzer;
+    private final String fieldName;
+    private final Overload overload;
+    private final Semaphore capacity;
+    private final ExecutorService workers;
+
+    /**
+     * @param analyzer the analyzer, shared by the workers.
+     * @param fieldName the field name passed to the analyzer.
+     * @param threads worker count.
+     * @param queueDepth submissions that may wait for a worker.
+     * @param overload what to do when they are all waiting.
+     */
+    public AsyncAnalyzer(Analyzer analyzer, String fieldName, int threads, int queueDepth, Overload overload) {
+        if (threads < 1 || queueDepth < 0) {
+            throw new IllegalArgumentException("threads must be positive and queueDepth not negative");
+        }
+        this.analyzer = analyzer;
+        this.fieldName = fieldName;
+        this.overload = overload;
+        capacity = new Semaphore(threads + queueDepth);
+        // the semaphore bounds the queue; the queue itself need not.
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("async-analysis-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Analyze a string.
+     * @throws RejectedExecutionException if the queue is full and the policy is to reject, or after {@link #shutdown()}.
+     */
+    public ListenableFuture<TokenBatch> submit(final String text) {
+        return execute(new Callable<TokenBatch>() {
+            @Override
+            public TokenBatch call() throws IOException {
+                return TokenBatch.analyze(analyzer, fieldName, text);
+            }
+        });
+    }
+
+    /**
+     * Analyze the contents of a reader, which is closed afterwards, whatever happens.
+     * @throws RejectedExecutionException if the queue is full and the policy is to reject, or after {@link #shutdown()}.
+     */
+    public ListenableFuture<TokenBatch> submit(final Reader reader) {
+        try {
+            return execute(new Callable<TokenBatch>() {
+                @Override
+                public TokenBatch call() throws IOException {
+                    try {
+                        TokenStream stream = analyzer.tokenStream(fieldName, reader);
+                        try {
+                            return TokenBatch.record(stream);
+                        } finally {
+                            stream.close();
+                        }
+                    } finally {
+                        IOUtils.closeQuietly(reader);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            IOUtils.closeQuietly(reader);
+            throw e;
+        }
+    }
+
+    /**
+     * Analyze many strings as one submission: one slot in the queue, one worker, in order.
+     * @return the batches, in the order of the texts.
+     * @throws RejectedExecutionException if the queue is full and the policy is to reject, or after {@link #shutdown()}.
+     */
+    public ListenableFuture<List<TokenBatch>> submitAll(List<String> texts) {
+        final List<String> copy = Lists.newArrayList(texts);
+        return execute(new Callable<List<TokenBatch>>() {
+            @Override
+            public List<TokenBatch> call() throws IOException {
+                List<TokenBatch> batches = Lists.newArrayListWithCapacity(copy.size());
+                for (String text : copy) {
+                    batches.add(TokenBatch.analyze(analyzer, fieldName, text));
+                }
+                return batches;
+            }
+        });
+    }
+
+    private <T> ListenableFuture<T> execute(Callable<T> work) {
+        if (overload == Overload.BLOCK) {
+            try {
+                capacity.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted waiting for room in the queue", e);
+            }
+        } else if (!capacity.tryAcquire()) {
+            throw new RejectedExecutionException("Analysis queue is full");
+        }
+        ListenableFutureTask<T> task = ListenableFutureTask.create(work);
+        // released when the work is done, however it ends, before any callback can submit more.
+        task.addListener(new Runnable() {
+            @Override
+            public void run() {
+                capacity.release();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            capacity.release();
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * @return submissions that could be made now without waiting or rejection.
+     */
+    public int getAvailableCapacity() {
+        return capacity.availablePermits();
+    }
+
+    /**
+     * Stop taking submissions; those already made still run.
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+}
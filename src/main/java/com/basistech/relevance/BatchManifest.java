@@ -0,0 +1,204 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * What an incremental batch run produced: for each input, its path, length, timestamp and
+ * SHA-1, and the output written from it, all under the fingerprint of the chain and output
+ * format that did the work. The next run skips an input whose entry still matches and whose
+ * output is still there. As with {@link ClasspathLock}, an input whose length and timestamp are
+ * unchanged is trusted without rereading it; otherwise its checksum decides. A different
+ * fingerprint invalidates every entry.
+ */
+final class BatchManifest {
+    static final String FILE_NAME = ".batch-manifest";
+    private static final Logger LOG = LoggerFactory.getLogger(BatchManifest.class);
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String COUNT = "input.count";
+
+    private final File file;
+    private final String fingerprint;
+    private final Map<String, Entry> previous = Maps.newHashMap();
+    private final Map<String, Entry> current = Maps.newTreeMap();
+
+    /**
+     * One input's record.
+     */
+    static final class Entry {
+        final String path;
+        final long length;
+        final long modified;
+        final String sha1;
+        final String output;
+
+        Entry(String path, long length, long modified, String sha1, String output) {
+            this.path = path;
+            this.length = length;
+            this.modified = modified;
+            this.sha1 = sha1;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Load the manifest, if there is one for the same fingerprint.
+     */
+    BatchManifest(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    private void load() {
+        Properties props = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            props.load(is);
+        } catch (IOException e) {
+            LOG.warn("Failed to read batch manifest {}; analyzing everything", file, e);
+            return;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        if (!fingerprint.equals(props.getProperty(FINGERPRINT))) {
+            LOG.info("Batch manifest {} is for a different chain or output format; analyzing everything", file);
+            return;
+        }
+        String countValue = props.getProperty(COUNT);
+        if (countValue == null) {
+            LOG.warn("Corrupt batch manifest {}: no input count; analyzing everything", file);
+            return;
+        }
+        try {
+            int count = Integer.parseInt(countValue);
+            for (int x = 0; x < count; x++) {
+                String prefix = "input." + x + ".";
+                String name = props.getProperty(prefix + "name");
+                String path = props.getProperty(prefix + "path");
+                String length = props.getProperty(prefix + "length");
+                String modified = props.getProperty(prefix + "modified");
+                String sha1 = props.getProperty(prefix + "sha1");
+                String output = props.getProperty(prefix + "output");
+                if (name == null || path == null || length == null || modified == null || sha1 == null || output == null) {
+                    LOG.warn("Corrupt batch manifest {}: incomplete entry for input {}; analyzing everything", file, x);
+                    previous.clear();
+                    return;
+                }
+                previous.put(name, new Entry(path, Long.parseLong(length), Long.parseLong(modified), sha1, output));
+            }
+        } catch (NumberFormatException e) {
+            LOG.warn("Corrupt batch manifest {}; analyzing everything", file, e);
+            previous.clear();
+        }
+    }
+
+    /**
+     * If an input is unchanged by length and timestamp, and its output is where it was, carry its
+     * entry over.
+     * @return true if the input can be skipped.
+     */
+    synchronized boolean keepIfUnmodified(BatchProcessor.Input input, File output) {
+        Entry entry = previous.get(input.name);
+        if (entry == null || !Objects.equal(entry.path, input.file.getAbsolutePath()) || !Objects.equal(entry.output, output.getAbsolutePath())
+                || !output.isFile() || entry.length != input.file.length() || entry.modified != input.file.lastModified()) {
+            return false;
+        }
+        current.put(input.name, entry);
+        return true;
+    }
+
+    /**
+     * Like {@link #keepIfUnmodified}, but for an input that has been touched: the checksum decides.
+     * @return true if the input can be skipped.
+     */
+    synchronized boolean keepIfSameContent(BatchProcessor.Input input, File output, String sha1) {
+        Entry entry = previous.get(input.name);
+        if (entry == null || !Objects.equal(entry.sha1, sha1) || !Objects.equal(entry.output, output.getAbsolutePath()) || !output.isFile()) {
+            return false;
+        }
+        record(input, output, sha1);
+        return true;
+    }
+
+    synchronized void record(BatchProcessor.Input input, File output, String sha1) {
+        current.put(input.name, new Entry(input.file.getAbsolutePath(), input.file.length(), input.file.lastModified(),
+                sha1, output.getAbsolutePath()));
+    }
+
+    /**
+     * @return the outputs of inputs in the previous run that are not in this one.
+     */
+    synchronized List<File> orphanedOutputs() {
+        List<File> orphans = Lists.newArrayList();
+        for (Map.Entry<String, Entry> me : previous.entrySet()) {
+            if (!current.containsKey(me.getKey())) {
+                orphans.add(new File(me.getValue().output));
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * Replace the manifest file with this run's entries.
+     */
+    synchronized void write() throws IOException {
+        Properties props = new Properties();
+        props.setProperty(FINGERPRINT, fingerprint);
+        props.setProperty(COUNT, Integer.toString(current.size()));
+        int x = 0;
+        for (Map.Entry<String, Entry> me : current.entrySet()) {
+            String prefix = "input." + x++ + ".";
+            Entry entry = me.getValue();
+            props.setProperty(prefix + "name", me.getKey());
+            props.setProperty(prefix + "path", entry.path);
+            props.setProperty(prefix + "length", Long.toString(entry.length));
+            props.setProperty(prefix + "modified", Long.toString(entry.modified));
+            props.setProperty(prefix + "sha1", entry.sha1);
+            props.setProperty(prefix + "output", entry.output);
+        }
+        // write aside and rename, so that an interrupted run leaves the old manifest.
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            props.store(os, "incremental batch analysis");
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Failed to replace batch manifest " + file);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Analyzes many documents in one process. A fixed set of workers pull documents from a shared
+ * list; each worker has its own analyzer, so Lucene's per-thread reuse of the token stream
+ * components means that after the first document nothing in the chain is rebuilt. Output is
+ * either one file per document or one shard per worker.
+ * <p>
+ * With a {@link BatchManifest}, output is one file per document and a run is incremental: inputs
+ * unchanged since the manifest was written, under the same chain, keep their previous output.
+ */
+final class BatchProcessor {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchProcessor.class);
+    // a whole ".." path segment; "a..b.txt" is an ordinary name.
+    private static final Pattern PARENT_SEGMENT = Pattern.compile("(^|[/\\\\])\\.\\.(?=$|[/\\\\])");
+
+    private final AnalyzerFactory analyzerFactory;
+    private final int threads;
+    private final boolean sharded;
+    private final OutputFormat format;
+    private final int fields;
+    private final BatchManifest manifest;
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * One input document and the name under which its output is written.
+     */
+    static final class Input {
+        final File file;
+        final String name;
+
+        Input(File file, String name) {
+            this.file = file;
+            this.name = name;
+        }
+    }
+
+    BatchProcessor(AnalyzerFactory analyzerFactory, int threads, boolean sharded, OutputFormat format, int fields) {
+        this(analyzerFactory, threads, sharded, format, fields, null);
+    }
+
+    /**
+     * @param manifest if not null, skip the inputs it shows to be unchanged, and record the rest in it.
+     */
+    BatchProcessor(AnalyzerFactory analyzerFactory, int threads, boolean sharded, OutputFormat format, int fields, BatchManifest manifest) {
+        if (sharded && manifest != null) {
+            throw new IllegalArgumentException("Incremental output cannot be sharded");
+        }
+        this.analyzerFactory = analyzerFactory;
+        this.threads = threads;
+        this.sharded = sharded;
+        this.format = format;
+        this.fields = fields;
+        this.manifest = manifest;
+    }
+
+    /**
+     * @return the fingerprint under which a manifest records this processor's output: the
+     * chain's, and the output format's.
+     */
+    static String manifestFingerprint(AnalyzerFactory analyzerFactory, ChainSpec chainSpec, OutputFormat format, int fields) {
+        return ClasspathLock.digest(analyzerFactory.chainFingerprint(chainSpec) + ' ' + format + ' ' + fields);
+    }
+
+    /**
+     * Work out the documents named by a batch input specification: a directory (searched
+     * recursively), a file-name glob such as {@code data/*.txt}, or {@code @manifest}, a file
+     * listing one input path per line.
+     */
+    static List<Input> listInputs(String spec) throws IOException {
+        List<Input> inputs = Lists.newArrayList();
+        if (spec.startsWith("@")) {
+            BufferedReader manifest = null;
+            try {
+                manifest = new BufferedReader(new InputStreamReader(new FileInputStream(spec.substring(1)), Charsets.UTF_8));
+                String line;
+                while ((line = manifest.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0 && !line.startsWith("#")) {
+                        // keep the manifest's own relative structure, but never escape the output directory.
+                        inputs.add(new Input(new File(line), PARENT_SEGMENT.matcher(line.replaceFirst("^([A-Za-z]:)?[/\\\\]+", "")).replaceAll("$1_")));
+                    }
+                }
+            } finally {
+                IOUtils.closeQuietly(manifest);
+            }
+            return inputs;
+        }
+
+        File file = new File(spec);
+        if (file.isDirectory()) {
+            walk(file, "", inputs);
+        } else if (file.getName().indexOf('*') != -1 || file.getName().indexOf('?') != -1) {
+            File dir = file.getAbsoluteFile().getParentFile();
+            Pattern pattern = globPattern(file.getName());
+            File[] children = dir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isFile() && pattern.matcher(child.getName()).matches()) {
+                        inputs.add(new Input(child, child.getName()));
+                    }
+                }
+            }
+        } else {
+            inputs.add(new Input(file, file.getName()));
+        }
+        Collections.sort(inputs, new Comparator<Input>() {
+            @Override
+            public int compare(Input o1, Input o2) {
+                return o1.name.compareTo(o2.name);
+            }
+        });
+        return inputs;
+    }
+
+    private static void walk(File dir, String prefix, List<Input> inputs) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                walk(child, prefix + child.getName() + "/", inputs);
+            } else if (child.isFile()) {
+                inputs.add(new Input(child, prefix + child.getName()));
+            }
+        }
+    }
+
+    private static Pattern globPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int x = 0; x < glob.length(); x++) {
+            char c = glob.charAt(x);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(Character.toString(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    void process(List<Input> allInputs, final File outputDir) throws IOException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDir);
+        }
+        final List<Input> inputs;
+        if (manifest == null) {
+            inputs = allInputs;
+        } else {
+            // the cheap check here; workers checksum whatever is left.
+            inputs = Lists.newArrayList();
+            for (Input input : allInputs) {
+                if (manifest.keepIfUnmodified(input, outputFile(outputDir, input))) {
+                    skipped.incrementAndGet();
+                } else {
+                    inputs.add(input);
+                }
+            }
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> workers = Lists.newArrayList();
+        long start = System.nanoTime();
+        for (int w = 0; w < threads; w++) {
+            final int shard = w;
+            workers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    work(inputs, next, outputDir, shard);
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Batch worker failed", e.getCause());
+        }
+        if (manifest != null) {
+            for (File orphan : manifest.orphanedOutputs()) {
+                if (orphan.isFile() && !orphan.delete()) {
+                    LOG.warn("Failed to delete {}, whose input is gone", orphan);
+                }
+            }
+            manifest.write();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(String.format("%d documents (%d failed, %d unchanged), %d tokens in %.2fs: %.1f docs/sec, %.1f tokens/sec",
+                documents.get(), failures.get(), skipped.get(), tokens.get(), seconds, documents.get() / seconds, tokens.get() / seconds));
+    }
+
+    private static String checksum(File file) throws IOException {
+        try {
+            return ClasspathLock.checksum(file);
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to read " + file, e.getCause());
+        }
+    }
+
+    private File outputFile(File outputDir, Input input) {
+        return new File(outputDir, input.name + format.suffix());
+    }
+
+    private void work(List<Input> inputs, AtomicInteger next, File outputDir, int shard) throws IOException {
+        Analyzer analyzer = analyzerFactory.newAnalyzer();
+        TokenSink shardSink = null;
+        try {
+            if (sharded) {
+                shardSink = open(new File(outputDir, String.format("part-%05d%s", shard, format.suffix())));
+            }
+            int index;
+            while ((index = next.getAndIncrement()) < inputs.size()) {
+                Input input = inputs.get(index);
+                Reader reader = null;
+                TokenSink sink = shardSink;
+                try {
+                    String sha1 = null;
+                    if (manifest != null) {
+                        sha1 = checksum(input.file);
+                        if (manifest.keepIfSameContent(input, outputFile(outputDir, input), sha1)) {
+                            skipped.incrementAndGet();
+                            continue;
+                        }
+                    }
+                    reader = Inputs.openReader(input.file);
+                    if (sharded) {
+                        sink.startDocument(input.name);
+                    } else {
+                        sink = open(outputFile(outputDir, input));
+                        sink.startDocument(null);
+                    }
+                    tokens.addAndGet(Driver.analyze(analyzer, reader, sink));
+                    sink.endDocument();
+                    documents.incrementAndGet();
+                    if (manifest != null) {
+                        manifest.record(input, outputFile(outputDir, input), sha1);
+                    }
+                } catch (IOException e) {
+                    LOG.error("Failed to analyze {}", input.file, e);
+                    failures.incrementAndGet();
+                } finally {
+                    IOUtils.closeQuietly(reader);
+                    if (!sharded) {
+                        Closeables.closeQuietly(sink);
+                    }
+                }
+            }
+        } finally {
+            Closeables.closeQuietly(shardSink);
+            analyzer.close();
+        }
+    }
+
+    private TokenSink open(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        return format.open(file, fields);
+    }
+}
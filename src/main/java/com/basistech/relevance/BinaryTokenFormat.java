@@ -0,0 +1,47 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+/**
+ * Constants of the binary token format written by {@link BinaryTokenWriter}.
+ * <p>
+ * A file starts with the magic bytes {@code RBTK}, a version byte and a byte of
+ * {@link TokenSink} field bits saying which optional values each token carries. Then follows a
+ * sequence of records, each introduced by a variable-length unsigned int tag:
+ * <ul>
+ * <li>{@link #END_DOCUMENT}: end of a document.</li>
+ * <li>{@link #START_DOCUMENT}: start of a document, followed by its name as a length-prefixed
+ * UTF-8 string, empty for an anonymous document.</li>
+ * <li>{@link #DEFINE_TYPE}: a token type, as a length-prefixed UTF-8 string. Types are
+ * numbered from 0 in the order they are defined, within the file.</li>
+ * <li>{@link #FIRST_TOKEN} + n: a token of type n: the term as a length-prefixed UTF-8 string;
+ * then, if present, the start offset as a zig-zag delta from the previous token's start in the
+ * document and the end offset as a zig-zag delta from the start; the position increment; the
+ * flags.</li>
+ * </ul>
+ * Lengths and numbers are unsigned little-endian base-128 varints (longs for offsets).
+ */
+final class BinaryTokenFormat {
+    static final byte[] MAGIC = {'R', 'B', 'T', 'K'};
+    static final int VERSION = 1;
+    static final int END_DOCUMENT = 0;
+    static final int START_DOCUMENT = 1;
+    static final int DEFINE_TYPE = 2;
+    static final int FIRST_TOKEN = 3;
+
+    private BinaryTokenFormat() {
+        // constants
+    }
+}
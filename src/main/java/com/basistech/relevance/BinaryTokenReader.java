@@ -0,0 +1,250 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the binary token output written by Driver with {@code --format binary}. Call
+ * {@link #next()} to move from event to event; after a {@link #TOKEN}, the accessors describe
+ * the token. The term buffer is reused from token to token.
+ */
+public final class BinaryTokenReader implements Closeable {
+    /** The end of the input. */
+    public static final int EOF = -1;
+    /** A document starts; see {@link #documentName()}. */
+    public static final int START_DOCUMENT = 0;
+    /** A token; see the other accessors. */
+    public static final int TOKEN = 1;
+    /** The current document ends. */
+    public static final int END_DOCUMENT = 2;
+
+    private final InputStream input;
+    private final int fields;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position;
+    private int limit;
+    private final List<String> types = Lists.newArrayList();
+    private byte[] stringBytes = new byte[256];
+    private char[] term = new char[64];
+    private int termLength;
+    private String type;
+    private String documentName;
+    private long startOffset;
+    private long endOffset;
+    private int positionIncrement = 1;
+    private int flags;
+
+    public BinaryTokenReader(InputStream input) throws IOException {
+        this.input = input;
+        for (byte b : BinaryTokenFormat.MAGIC) {
+            if (readByte() != b) {
+                throw new IOException("Not a binary token file");
+            }
+        }
+        int version = readByte();
+        if (version != BinaryTokenFormat.VERSION) {
+            throw new IOException("Unsupported binary token format version " + version);
+        }
+        fields = readByte();
+    }
+
+    /**
+     * Advance to the next event.
+     * @return {@link #START_DOCUMENT}, {@link #TOKEN}, {@link #END_DOCUMENT} or {@link #EOF}.
+     */
+    public int next() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                return EOF;
+            }
+            long tag = readVarLong();
+            if (tag == BinaryTokenFormat.END_DOCUMENT) {
+                return END_DOCUMENT;
+            } else if (tag == BinaryTokenFormat.START_DOCUMENT) {
+                String name = readString();
+                documentName = name.length() == 0 ? null : name;
+                startOffset = 0;
+                return START_DOCUMENT;
+            } else if (tag == BinaryTokenFormat.DEFINE_TYPE) {
+                types.add(readString());
+            } else {
+                readToken((int) (tag - BinaryTokenFormat.FIRST_TOKEN));
+                return TOKEN;
+            }
+        }
+    }
+
+    private void readToken(int typeId) throws IOException {
+        if (typeId >= types.size()) {
+            throw new IOException("Undefined token type " + typeId);
+        }
+        type = types.get(typeId);
+        termLength = decodeUtf8((int) readVarLong());
+        if ((fields & TokenSink.OFFSETS) != 0) {
+            startOffset += unZigZag(readVarLong());
+            endOffset = startOffset + unZigZag(readVarLong());
+        }
+        if ((fields & TokenSink.POSITIONS) != 0) {
+            positionIncrement = (int) readVarLong();
+        }
+        if ((fields & TokenSink.FLAGS) != 0) {
+            flags = (int) readVarLong();
+        }
+    }
+
+    public boolean hasOffsets() {
+        return (fields & TokenSink.OFFSETS) != 0;
+    }
+
+    public boolean hasPositionIncrements() {
+        return (fields & TokenSink.POSITIONS) != 0;
+    }
+
+    public boolean hasFlags() {
+        return (fields & TokenSink.FLAGS) != 0;
+    }
+
+    /**
+     * @return the name of the current document, or null if it has none.
+     */
+    public String documentName() {
+        return documentName;
+    }
+
+    /**
+     * @return the buffer holding the current term, valid up to {@link #termLength()}.
+     */
+    public char[] termBuffer() {
+        return term;
+    }
+
+    public int termLength() {
+        return termLength;
+    }
+
+    public String term() {
+        return new String(term, 0, termLength);
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public long startOffset() {
+        return startOffset;
+    }
+
+    public long endOffset() {
+        return endOffset;
+    }
+
+    public int positionIncrement() {
+        return positionIncrement;
+    }
+
+    public int flags() {
+        return flags;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private boolean fill() throws IOException {
+        position = 0;
+        limit = 0;
+        int count;
+        while ((count = input.read(buffer)) == 0) {
+            // keep trying
+        }
+        if (count == -1) {
+            return false;
+        }
+        limit = count;
+        return true;
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit && !fill()) {
+            throw new EOFException("Truncated binary token input");
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void readBytes(int length) throws IOException {
+        if (stringBytes.length < length) {
+            stringBytes = new byte[Math.max(length, 2 * stringBytes.length)];
+        }
+        for (int x = 0; x < length; x++) {
+            stringBytes[x] = (byte) readByte();
+        }
+    }
+
+    private String readString() throws IOException {
+        int length = (int) readVarLong();
+        readBytes(length);
+        return new String(stringBytes, 0, length, Charsets.UTF_8);
+    }
+
+    private int decodeUtf8(int byteLength) throws IOException {
+        readBytes(byteLength);
+        if (term.length < byteLength) {
+            // never more chars than bytes.
+            term = Arrays.copyOf(term, Math.max(byteLength, 2 * term.length));
+        }
+        int chars = 0;
+        int x = 0;
+        while (x < byteLength) {
+            int b = stringBytes[x++] & 0xff;
+            if (b < 0x80) {
+                term[chars++] = (char) b;
+            } else if (b < 0xe0) {
+                term[chars++] = (char) (((b & 0x1f) << 6) | (stringBytes[x++] & 0x3f));
+            } else if (b < 0xf0) {
+                term[chars++] = (char) (((b & 0x0f) << 12) | ((stringBytes[x++] & 0x3f) << 6) | (stringBytes[x++] & 0x3f));
+            } else {
+                int codePoint = ((b & 0x07) << 18) | ((stringBytes[x++] & 0x3f) << 12) | ((stringBytes[x++] & 0x3f) << 6) | (stringBytes[x++] & 0x3f);
+                chars += Character.toChars(codePoint, term, chars);
+            }
+        }
+        return chars;
+    }
+}
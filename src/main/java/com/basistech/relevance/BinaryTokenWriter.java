@@ -0,0 +1,215 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.FlagsAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.AttributeSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+/**
+ * Writes tokens in the {@link BinaryTokenFormat}. Terms are encoded to UTF-8 straight from the
+ * term attribute's buffer into one reused byte buffer, and types are written once and referred to
+ * by number afterwards, so writing a token allocates nothing.
+ */
+final class BinaryTokenWriter implements TokenSink {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // the most bytes a varint of a long can take.
+    private static final int MAX_VARINT = 10;
+
+    private final WritableByteChannel channel;
+    private final int fields;
+    private final Map<String, Integer> typeIds = Maps.newHashMap();
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private String lastType;
+    private int lastTypeId;
+    private long previousStart;
+    private CharTermAttribute charTerm;
+    private TypeAttribute type;
+    private OffsetAttribute offset;
+    private PositionIncrementAttribute positionIncrement;
+    private FlagsAttribute flags;
+
+    BinaryTokenWriter(WritableByteChannel channel, int fields) throws IOException {
+        this.channel = channel;
+        this.fields = fields;
+        buffer.put(BinaryTokenFormat.MAGIC);
+        buffer.put((byte) BinaryTokenFormat.VERSION);
+        buffer.put((byte) fields);
+    }
+
+    @Override
+    public void startDocument(String name) throws IOException {
+        previousStart = 0;
+        ensure(MAX_VARINT);
+        putVarLong(BinaryTokenFormat.START_DOCUMENT);
+        putString(name == null ? "" : name);
+    }
+
+    @Override
+    public void bind(AttributeSource attributes) {
+        charTerm = attributes.addAttribute(CharTermAttribute.class);
+        type = attributes.addAttribute(TypeAttribute.class);
+        offset = attributes.addAttribute(OffsetAttribute.class);
+        positionIncrement = attributes.addAttribute(PositionIncrementAttribute.class);
+        flags = attributes.addAttribute(FlagsAttribute.class);
+    }
+
+    @Override
+    public void token(long offsetBase) throws IOException {
+        int typeId = typeId(type.type());
+        char[] chars = charTerm.buffer();
+        int length = charTerm.length();
+        int byteLength = utf8Length(chars, length);
+        ensure(5 * MAX_VARINT + byteLength);
+        putVarLong(BinaryTokenFormat.FIRST_TOKEN + typeId);
+        putVarLong(byteLength);
+        putUtf8(chars, length);
+        if ((fields & OFFSETS) != 0) {
+            long start = offsetBase + offset.startOffset();
+            putVarLong(zigZag(start - previousStart));
+            putVarLong(zigZag(offset.endOffset() - offset.startOffset()));
+            previousStart = start;
+        }
+        if ((fields & POSITIONS) != 0) {
+            putVarLong(positionIncrement.getPositionIncrement());
+        }
+        if ((fields & FLAGS) != 0) {
+            putVarLong(flags.getFlags() & 0xffffffffL);
+        }
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        ensure(MAX_VARINT);
+        putVarLong(BinaryTokenFormat.END_DOCUMENT);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int typeId(String typeName) throws IOException {
+        // types are nearly always the same interned constants, so try identity first.
+        if (typeName == lastType) {
+            return lastTypeId;
+        }
+        Integer id = typeIds.get(typeName);
+        if (id == null) {
+            id = typeIds.size();
+            typeIds.put(typeName, id);
+            ensure(MAX_VARINT);
+            putVarLong(BinaryTokenFormat.DEFINE_TYPE);
+            putString(typeName);
+        }
+        lastType = typeName;
+        lastTypeId = id;
+        return lastTypeId;
+    }
+
+    private void putString(String string) throws IOException {
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        ensure(MAX_VARINT + bytes.length);
+        putVarLong(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+            if (buffer.capacity() < bytes) {
+                buffer = ByteBuffer.allocate(Math.max(bytes, 2 * buffer.capacity()));
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int utf8Length(char[] chars, int length) {
+        int bytes = 0;
+        for (int x = 0; x < length; x++) {
+            char c = chars[x];
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && x + 1 < length && Character.isLowSurrogate(chars[x + 1])) {
+                bytes += 4;
+                x++;
+            } else {
+                // includes an unpaired surrogate, which is written as U+FFFD.
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void putUtf8(char[] chars, int length) {
+        for (int x = 0; x < length; x++) {
+            int c = chars[x];
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate((char) c) && x + 1 < length && Character.isLowSurrogate(chars[x + 1])) {
+                int codePoint = Character.toCodePoint((char) c, chars[++x]);
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else {
+                if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    c = 0xfffd;
+                }
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps an analyzer to remember its output for short inputs, such as query terms, titles and
+ * facet values, which tend to repeat. Inputs up to a length limit are looked up by field and
+ * text in an LRU cache, bounded in entries and in estimated bytes, of {@link TokenBatch}es;
+ * a hit is replayed through the token stream without running the chain at all. Longer inputs
+ * go straight through. Only the term, offsets, type and position increment are kept, so
+ * callers that need other attributes should not use this.
+ */
+public final class CachingAnalyzer extends Analyzer {
+    private static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private final Analyzer analyzer;
+    private final int maxChars;
+    private final LruCache<String, TokenBatch> cache;
+    private final AtomicLong bypasses = new AtomicLong();
+
+    /**
+     * @param analyzer the analyzer to remember.
+     * @param maxChars the longest input to cache.
+     * @param maxBytes the most memory, estimated, for the cache to use.
+     */
+    public CachingAnalyzer(Analyzer analyzer, int maxChars, long maxBytes) {
+        this.analyzer = analyzer;
+        this.maxChars = maxChars;
+        cache = new LruCache<String, TokenBatch>(DEFAULT_MAX_ENTRIES, new LruCache.Weigher<String, TokenBatch>() {
+            @Override
+            public long weigh(String key, TokenBatch value) {
+                return 40 + 2L * key.length() + value.estimatedBytes();
+            }
+        });
+        cache.setMaxWeight(maxBytes);
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+        return new TokenStreamComponents(new MemoizingTokenizer(fieldName, reader));
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        analyzer.close();
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        cache.setMaxSize(maxEntries);
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * @return hits over lookups; inputs too long to cache are not lookups.
+     */
+    public double getHitRate() {
+        long hits = cache.getHits();
+        long lookups = hits + cache.getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return the inputs that were too long to cache.
+     */
+    public long getBypasses() {
+        return bypasses.get();
+    }
+
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    public int getEntries() {
+        return cache.size();
+    }
+
+    /**
+     * @return the estimated bytes held by the cache.
+     */
+    public long getMemoryBytes() {
+        return cache.getWeight();
+    }
+
+    public String statistics() {
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d too long; %d entries, %d KB, %d evicted",
+                getHits(), getMisses(), 100 * getHitRate(), getBypasses(), getEntries(), getMemoryBytes() / 1024, getEvictions());
+    }
+
+    /**
+     * Reads the input, up to one char past the limit, at reset. Short input is served from the
+     * cache, analyzing and remembering it on a miss; long input streams through the wrapped
+     * analyzer, its tokens copied across one at a time.
+     */
+    private final class MemoizingTokenizer extends Tokenizer {
+        private final String fieldName;
+        private final char[] buffer = new char[maxChars + 1];
+        private final TokenBatch.Player player;
+        private final CharTermAttribute term = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offset = addAttribute(OffsetAttribute.class);
+        private final PositionIncrementAttribute positionIncrement = addAttribute(PositionIncrementAttribute.class);
+        private final TypeAttribute type = addAttribute(TypeAttribute.class);
+        private TokenBatch batch;
+        private int index;
+        private TokenStream live;
+        private CharTermAttribute liveTerm;
+        private OffsetAttribute liveOffset;
+        private PositionIncrementAttribute livePositionIncrement;
+        private TypeAttribute liveType;
+
+        MemoizingTokenizer(String fieldName, Reader input) {
+            super(input);
+            this.fieldName = fieldName;
+            player = new TokenBatch.Player(this);
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            int length = 0;
+            int count;
+            while (length < buffer.length && (count = input.read(buffer, length, buffer.length - length)) != -1) {
+                length += count;
+            }
+            if (length <= maxChars) {
+                String text = new String(buffer, 0, length);
+                String key = fieldName + '\u0000' + text;
+                batch = cache.get(key);
+                if (batch == null) {
+                    batch = cache.putIfAbsent(key, TokenBatch.analyze(analyzer, fieldName, text));
+                }
+                index = 0;
+            } else {
+                bypasses.incrementAndGet();
+                batch = null;
+                live = analyzer.tokenStream(fieldName, new PrefixedReader(buffer, length, input));
+                liveTerm = live.addAttribute(CharTermAttribute.class);
+                liveOffset = live.addAttribute(OffsetAttribute.class);
+                livePositionIncrement = live.addAttribute(PositionIncrementAttribute.class);
+                liveType = live.addAttribute(TypeAttribute.class);
+                live.reset();
+            }
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            clearAttributes();
+            if (live != null) {
+                if (!live.incrementToken()) {
+                    return false;
+                }
+                term.copyBuffer(liveTerm.buffer(), 0, liveTerm.length());
+                offset.setOffset(liveOffset.startOffset(), liveOffset.endOffset());
+                positionIncrement.setPositionIncrement(livePositionIncrement.getPositionIncrement());
+                type.setType(liveType.type());
+                return true;
+            }
+            if (batch == null || index == batch.size()) {
+                return false;
+            }
+            player.play(batch, index++, 0);
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            int finalOffset;
+            if (live != null) {
+                live.end();
+                finalOffset = liveOffset.endOffset();
+            } else {
+                finalOffset = batch == null ? 0 : batch.finalOffset();
+            }
+            offset.setOffset(finalOffset, finalOffset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (live != null) {
+                    live.close();
+                }
+            } finally {
+                live = null;
+                batch = null;
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * The chars already read, then the rest of the input.
+     */
+    private static final class PrefixedReader extends Reader {
+        private final char[] prefix;
+        private final int prefixLength;
+        private final Reader rest;
+        private int position;
+
+        PrefixedReader(char[] prefix, int prefixLength, Reader rest) {
+            this.prefix = prefix;
+            this.prefixLength = prefixLength;
+            this.rest = rest;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (position < prefixLength) {
+                int count = Math.min(len, prefixLength - position);
+                System.arraycopy(prefix, position, cbuf, off, count);
+                position += count;
+                return count;
+            }
+            return rest.read(cbuf, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the tokenizer owns the input.
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs one input through several chains. The input is read and decoded once into a char
+ * buffer that every chain reads from, and the chains run in parallel. Each chain writes its
+ * own output, with offsets so that the outputs align against the input, and the comparison
+ * ends with a summary of token counts, vocabulary overlap and throughput.
+ */
+final class ChainComparison {
+    private final AnalyzerFactory analyzerFactory;
+    private final Map<String, ChainSpec> chains;
+    private final int threads;
+    private final OutputFormat format;
+    private final int fields;
+
+    ChainComparison(AnalyzerFactory analyzerFactory, Map<String, ChainSpec> chains, int threads, OutputFormat format, int fields) {
+        this.analyzerFactory = analyzerFactory;
+        this.chains = chains;
+        this.threads = threads;
+        this.format = format;
+        this.fields = fields | TokenSink.OFFSETS;
+    }
+
+    /**
+     * What one chain made of the input.
+     */
+    private static final class ChainResult {
+        final String name;
+        final long tokens;
+        final Set<String> vocabulary;
+        final long nanos;
+
+        ChainResult(String name, long tokens, Set<String> vocabulary, long nanos) {
+            this.name = name;
+            this.tokens = tokens;
+            this.vocabulary = vocabulary;
+            this.nanos = nanos;
+        }
+    }
+
+    void compare(Reader input, File outputDir, PrintStream report) throws IOException {
+        long start = System.nanoTime();
+        final char[] text = readFully(input);
+        long decodeNanos = System.nanoTime() - start;
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Failed to create " + outputDir);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, chains.size()));
+        List<Future<ChainResult>> futures = Lists.newArrayList();
+        List<ChainResult> results = Lists.newArrayList();
+        try {
+            for (Map.Entry<String, ChainSpec> me : chains.entrySet()) {
+                final String name = me.getKey();
+                final Analyzer analyzer = analyzerFactory.newAnalyzer(me.getValue());
+                final File output = new File(outputDir, name + format.suffix());
+                futures.add(executor.submit(new Callable<ChainResult>() {
+                    @Override
+                    public ChainResult call() throws Exception {
+                        return run(name, analyzer, text, output);
+                    }
+                }));
+            }
+            for (Future<ChainResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        report(results, text.length, decodeNanos, System.nanoTime() - start, report);
+    }
+
+    private ChainResult run(String name, Analyzer analyzer, char[] text, File output) throws IOException {
+        Set<String> vocabulary = Sets.newHashSet();
+        long count = 0;
+        long start = System.nanoTime();
+        TokenSink sink = format.open(output, fields);
+        try {
+            TokenStream tokens = analyzer.tokenStream("dummy", new CharArrayReader(text));
+            try {
+                CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+                sink.bind(tokens);
+                sink.startDocument(null);
+                tokens.reset();
+                while (tokens.incrementToken()) {
+                    sink.token(0);
+                    vocabulary.add(term.toString());
+                    count++;
+                }
+                tokens.end();
+                sink.endDocument();
+            } finally {
+                tokens.close();
+            }
+        } finally {
+            Closeables.closeQuietly(sink);
+        }
+        return new ChainResult(name, count, vocabulary, System.nanoTime() - start);
+    }
+
+    private static void report(List<ChainResult> results, int chars, long decodeNanos, long totalNanos, PrintStream out) {
+        out.println(String.format("%d chars decoded once in %.1fms; %d chains in %.1fms", chars, decodeNanos / 1e6, results.size(), totalNanos / 1e6));
+        out.println(String.format("%-16s %12s %8s %12s %10s %12s", "chain", "tokens", "vs first", "types", "ms", "tokens/sec"));
+        ChainResult first = results.get(0);
+        for (ChainResult result : results) {
+            double change = first.tokens == 0 ? 0 : 100.0 * (result.tokens - first.tokens) / first.tokens;
+            out.println(String.format("%-16s %12d %+7.1f%% %12d %10.1f %12.0f", result.name, result.tokens, change, result.vocabulary.size(),
+                    result.nanos / 1e6, result.tokens / (result.nanos / 1e9)));
+        }
+        if (results.size() < 2) {
+            return;
+        }
+        out.println("Vocabulary overlap (shared types / all types):");
+        StringBuilder header = new StringBuilder(String.format("%-16s", ""));
+        for (ChainResult result : results) {
+            header.append(String.format(" %10s", abbreviate(result.name)));
+        }
+        out.println(header);
+        for (ChainResult row : results) {
+            StringBuilder line = new StringBuilder(String.format("%-16s", row.name));
+            for (ChainResult column : results) {
+                line.append(String.format(" %9.1f%%", 100.0 * jaccard(row.vocabulary, column.vocabulary)));
+            }
+            out.println(line);
+        }
+    }
+
+    private static String abbreviate(String name) {
+        return name.length() <= 10 ? name : name.substring(0, 10);
+    }
+
+    private static double jaccard(Set<String> a, Set<String> b) {
+        if (a.isEmpty() && b.isEmpty()) {
+            return 1;
+        }
+        Set<String> smaller = a.size() <= b.size() ? a : b;
+        Set<String> larger = smaller == a ? b : a;
+        int shared = 0;
+        for (String type : smaller) {
+            if (larger.contains(type)) {
+                shared++;
+            }
+        }
+        return (double) shared / (a.size() + b.size() - shared);
+    }
+
+    static char[] readFully(Reader reader) throws IOException {
+        char[] buffer = new char[64 * 1024];
+        int length = 0;
+        int count;
+        while ((count = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += count;
+            if (length == buffer.length) {
+                char[] grown = new char[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+        }
+        if (length == buffer.length) {
+            return buffer;
+        }
+        char[] text = new char[length];
+        System.arraycopy(buffer, 0, text, 0, length);
+        return text;
+    }
+}
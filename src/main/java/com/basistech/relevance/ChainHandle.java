@@ -0,0 +1,355 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.lucene.analysis.Analyzer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A chain that can be replaced while in use. Each version of the chain is an analyzer, built and
+ * warmed up on a background thread and then swapped in with one atomic write; analysis runs under
+ * a {@link Lease} on whichever version was current when it started, so token streams in flight
+ * finish on the version they began with. A replaced version is closed, releasing its per-thread
+ * components and with them its hold on its class loader, when its last lease ends.
+ * <p>
+ * A reload can change the chain's options, or, with a freshly initialized {@link AnalyzerFactory},
+ * its artifacts.
+ */
+public final class ChainHandle implements ChainHandleMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ChainHandle.class);
+    private static final String DOMAIN = "com.basistech.relevance";
+    private static final int WARMUP_ROUNDS = 200;
+    private static final String WARMUP_TEXT = "The quick brown fox jumps over the lazy dog. <b>1,234.56</b> e-mail: someone@example.com";
+
+    private final AtomicReference<Version> current = new AtomicReference<Version>();
+    private final Set<Version> draining = Sets.newSetFromMap(new ConcurrentHashMap<Version, Boolean>());
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("chain-reload-%d").setDaemon(true).build());
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong failedReloads = new AtomicLong();
+    private volatile AnalyzerFactory analyzerFactory;
+    private volatile long lastBuildMillis;
+    private volatile long lastSwapNanos;
+    private volatile long lastDrainMillis;
+    private int nextVersion = 1;
+    private boolean closed;
+    private ObjectName objectName;
+
+    /**
+     * One build of the chain.
+     */
+    private final class Version {
+        final int number;
+        final ChainSpec spec;
+        final Analyzer analyzer;
+        final AtomicInteger leases = new AtomicInteger();
+        final AtomicBoolean closed = new AtomicBoolean();
+        volatile long retiredMillis;
+
+        Version(int number, ChainSpec spec, Analyzer analyzer) {
+            this.number = number;
+            this.spec = spec;
+            this.analyzer = analyzer;
+        }
+
+        void release() {
+            if (leases.decrementAndGet() == 0 && retiredMillis != 0) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                analyzer.close();
+                draining.remove(this);
+                lastDrainMillis = System.currentTimeMillis() - retiredMillis;
+                LOG.info("Chain version {} drained and closed", number);
+            }
+        }
+    }
+
+    /**
+     * The right to use one version of the chain until released. A lease belongs to one thread.
+     */
+    public static final class Lease {
+        private final Version version;
+        private boolean released;
+
+        private Lease(Version version) {
+            this.version = version;
+        }
+
+        public Analyzer analyzer() {
+            return version.analyzer;
+        }
+
+        public int version() {
+            return version.number;
+        }
+
+        public ChainSpec chain() {
+            return version.spec;
+        }
+
+        /**
+         * End the lease; its token streams must be closed by now. Releasing twice does nothing.
+         */
+        public void release() {
+            if (!released) {
+                released = true;
+                version.release();
+            }
+        }
+    }
+
+    /**
+     * Build and warm the first version, on this thread.
+     */
+    ChainHandle(AnalyzerFactory analyzerFactory, ChainSpec spec) {
+        this.analyzerFactory = analyzerFactory;
+        current.set(build(analyzerFactory, spec));
+    }
+
+    /**
+     * @return a lease on the current version.
+     */
+    public Lease acquire() {
+        while (true) {
+            Version version = current.get();
+            if (version == null) {
+                throw new IllegalStateException("Chain handle is closed");
+            }
+            version.leases.incrementAndGet();
+            // a swap between the read and the increment may already have retired it; go again.
+            if (current.get() == version) {
+                return new Lease(version);
+            }
+            version.release();
+        }
+    }
+
+    /**
+     * Analyze a string under a lease of its own.
+     */
+    public TokenBatch analyze(String fieldName, String text) throws IOException {
+        Lease lease = acquire();
+        try {
+            return TokenBatch.analyze(lease.analyzer(), fieldName, text);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Build a new version of the chain in the background, with the same factory, and swap it in.
+     * @return the new version's number, once it is current; a failed build leaves the current version,
+     * and a build that finishes after {@link #close()} is discarded.
+     */
+    public ListenableFuture<Integer> reload(ChainSpec spec) {
+        return reload(analyzerFactory, spec);
+    }
+
+    /**
+     * Like {@link #reload(ChainSpec)}, with another factory, for new artifacts. The old factory's
+     * class loader is released along with the last version built from it.
+     */
+    public ListenableFuture<Integer> reload(final AnalyzerFactory factory, final ChainSpec spec) {
+        ListenableFutureTask<Integer> task = ListenableFutureTask.create(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                reloads.incrementAndGet();
+                Version version;
+                try {
+                    version = build(factory, spec);
+                } catch (RuntimeException e) {
+                    failedReloads.incrementAndGet();
+                    LOG.warn("Failed to build a new version of the chain; keeping the current one", e);
+                    throw e;
+                }
+                analyzerFactory = factory;
+                swap(version);
+                return version.number;
+            }
+        });
+        builder.execute(task);
+        return task;
+    }
+
+    private Version build(AnalyzerFactory factory, ChainSpec spec) {
+        long start = System.currentTimeMillis();
+        Analyzer analyzer = factory.newAnalyzer(spec);
+        try {
+            for (int x = 0; x < WARMUP_ROUNDS; x++) {
+                TokenBatch.analyze(analyzer, "warmup", WARMUP_TEXT);
+            }
+        } catch (IOException e) {
+            analyzer.close();
+            throw new RuntimeException("Failed to warm up " + spec, e);
+        }
+        int number;
+        synchronized (this) {
+            number = nextVersion++;
+        }
+        lastBuildMillis = System.currentTimeMillis() - start;
+        LOG.info("Built chain version {} in {}ms", number, lastBuildMillis);
+        return new Version(number, spec, analyzer);
+    }
+
+    private void swap(Version version) {
+        long start = System.nanoTime();
+        Version old;
+        synchronized (this) {
+            if (closed) {
+                // a reload queued before close(); it must not bring the handle back.
+                version.close();
+                throw new IllegalStateException("Chain handle is closed");
+            }
+            old = current.getAndSet(version);
+        }
+        lastSwapNanos = System.nanoTime() - start;
+        if (old != null) {
+            retire(old);
+        }
+    }
+
+    private void retire(Version old) {
+        draining.add(old);
+        old.retiredMillis = System.currentTimeMillis();
+        if (old.leases.get() == 0) {
+            old.close();
+        }
+    }
+
+    /**
+     * Stop reloading, and close the current version once its leases end.
+     */
+    public void close() {
+        builder.shutdown();
+        Version old;
+        synchronized (this) {
+            closed = true;
+            old = current.getAndSet(null);
+        }
+        if (old != null) {
+            retire(old);
+        }
+        unregister();
+    }
+
+    /**
+     * Register with the platform MBean server; failure is logged, not fatal.
+     */
+    synchronized void register(String id) {
+        try {
+            objectName = new ObjectName(DOMAIN + ":type=ChainHandle,name=" + ObjectName.quote(id));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOG.warn("Failed to register chain handle {}", id, e);
+            objectName = null;
+        }
+    }
+
+    synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOG.debug("Failed to unregister {}", objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getChain() {
+        Version version = current.get();
+        return version == null ? null : version.spec.toString();
+    }
+
+    @Override
+    public int getVersion() {
+        Version version = current.get();
+        return version == null ? 0 : version.number;
+    }
+
+    @Override
+    public int getInFlight() {
+        Version version = current.get();
+        return version == null ? 0 : version.leases.get();
+    }
+
+    @Override
+    public int getDrainingVersions() {
+        return draining.size();
+    }
+
+    @Override
+    public int getDrainingInFlight() {
+        int leases = 0;
+        for (Version version : draining) {
+            leases += version.leases.get();
+        }
+        return leases;
+    }
+
+    @Override
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    @Override
+    public long getFailedReloads() {
+        return failedReloads.get();
+    }
+
+    @Override
+    public long getLastBuildMillis() {
+        return lastBuildMillis;
+    }
+
+    @Override
+    public long getLastSwapNanos() {
+        return lastSwapNanos;
+    }
+
+    @Override
+    public long getLastDrainMillis() {
+        return lastDrainMillis;
+    }
+}
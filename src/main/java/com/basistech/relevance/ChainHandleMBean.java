@@ -0,0 +1,58 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+/**
+ * JMX view of a {@link ChainHandle}.
+ */
+public interface ChainHandleMBean {
+    String getChain();
+
+    int getVersion();
+
+    /**
+     * @return leases held on the current version.
+     */
+    int getInFlight();
+
+    /**
+     * @return replaced versions still leased, waiting to be released.
+     */
+    int getDrainingVersions();
+
+    /**
+     * @return leases held on replaced versions.
+     */
+    int getDrainingInFlight();
+
+    long getReloads();
+
+    long getFailedReloads();
+
+    /**
+     * @return milliseconds to build and warm the last version swapped in.
+     */
+    long getLastBuildMillis();
+
+    /**
+     * @return nanoseconds that the last swap itself took.
+     */
+    long getLastSwapNanos();
+
+    /**
+     * @return milliseconds from the last release of a replaced version to its last lease ending.
+     */
+    long getLastDrainMillis();
+}
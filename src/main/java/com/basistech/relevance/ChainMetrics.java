@@ -0,0 +1,234 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-stage counts and times for one analysis chain, gathered by the instrumented analyzers that
+ * {@link AnalyzerFactory} makes when instrumentation is on. Counts are exact. Times are taken only
+ * for one document in every {@link #getSamplingPeriod() sampling period}, and scaled up, so that
+ * the clock reads cost little when the period is large. A stage's time includes the stages it
+ * pulls from; the self times subtract them out.
+ */
+public final class ChainMetrics implements ChainMetricsMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ChainMetrics.class);
+    private static final String DOMAIN = "com.basistech.relevance";
+
+    private final String chain;
+    private final String[] stageNames;
+    private final AtomicLongArray tokens;
+    private final AtomicLongArray chars;
+    private final AtomicLongArray sampledNanos;
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong sampledDocuments = new AtomicLong();
+    private volatile int samplingPeriod;
+    private ObjectName objectName;
+
+    ChainMetrics(ChainSpec spec, int samplingPeriod) {
+        this.chain = spec.toString();
+        int stages = 1 + spec.getCharFilterSpecs().size() + 1 + spec.getTokenFilterSpecs().size();
+        stageNames = new String[stages];
+        int stage = 0;
+        stageNames[stage++] = "(input)";
+        for (ComponentSpec charFilter : spec.getCharFilterSpecs()) {
+            stageNames[stage++] = charFilter.getName() + " (char filter)";
+        }
+        stageNames[stage++] = spec.getTokenizerSpec().getName() + " (tokenizer)";
+        for (ComponentSpec tokenFilter : spec.getTokenFilterSpecs()) {
+            stageNames[stage++] = tokenFilter.getName();
+        }
+        tokens = new AtomicLongArray(stages);
+        chars = new AtomicLongArray(stages);
+        sampledNanos = new AtomicLongArray(stages);
+        setSamplingPeriod(samplingPeriod);
+    }
+
+    /**
+     * The per-components side of the metrics. Token stream components are only ever used by one
+     * thread at a time, so a probe counts in plain fields and adds them into the shared totals
+     * when a document ends.
+     */
+    final class Probe {
+        final long[] tokens = new long[stageNames.length];
+        final long[] chars = new long[stageNames.length];
+        final long[] nanos = new long[stageNames.length];
+        boolean sampled;
+        private int countdown;
+
+        void startDocument() {
+            if (--countdown <= 0) {
+                countdown = samplingPeriod;
+                sampled = true;
+            } else {
+                sampled = false;
+            }
+        }
+
+        void endDocument() {
+            documents.incrementAndGet();
+            if (sampled) {
+                sampledDocuments.incrementAndGet();
+            }
+            for (int x = 0; x < tokens.length; x++) {
+                if (tokens[x] != 0) {
+                    ChainMetrics.this.tokens.addAndGet(x, tokens[x]);
+                    tokens[x] = 0;
+                }
+                if (chars[x] != 0) {
+                    ChainMetrics.this.chars.addAndGet(x, chars[x]);
+                    chars[x] = 0;
+                }
+                if (nanos[x] != 0) {
+                    sampledNanos.addAndGet(x, nanos[x]);
+                    nanos[x] = 0;
+                }
+            }
+            sampled = false;
+        }
+    }
+
+    Probe newProbe() {
+        return new Probe();
+    }
+
+    /**
+     * Register with the platform MBean server; failure is logged, not fatal.
+     */
+    synchronized void register(String id) {
+        try {
+            objectName = new ObjectName(DOMAIN + ":type=ChainMetrics,name=" + ObjectName.quote(id));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOG.warn("Failed to register chain metrics for {}", id, e);
+            objectName = null;
+        }
+    }
+
+    synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOG.debug("Failed to unregister {}", objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getChain() {
+        return chain;
+    }
+
+    @Override
+    public String[] getStageNames() {
+        return stageNames.clone();
+    }
+
+    @Override
+    public long getDocuments() {
+        return documents.get();
+    }
+
+    @Override
+    public long getSampledDocuments() {
+        return sampledDocuments.get();
+    }
+
+    @Override
+    public long[] getTokens() {
+        return toArray(tokens);
+    }
+
+    @Override
+    public long[] getCharsRead() {
+        return toArray(chars);
+    }
+
+    @Override
+    public long[] getEstimatedSelfNanos() {
+        long sampled = sampledDocuments.get();
+        double scale = sampled == 0 ? 0 : (double) documents.get() / sampled;
+        long[] self = new long[stageNames.length];
+        long previous = 0;
+        for (int x = 0; x < self.length; x++) {
+            long inclusive = sampledNanos.get(x);
+            // a stage can do some of its pulling outside the calls that are timed, so clamp.
+            self[x] = Math.max(0, Math.round((inclusive - previous) * scale));
+            previous = inclusive;
+        }
+        return self;
+    }
+
+    @Override
+    public int getSamplingPeriod() {
+        return samplingPeriod;
+    }
+
+    @Override
+    public void setSamplingPeriod(int samplingPeriod) {
+        if (samplingPeriod < 1) {
+            throw new IllegalArgumentException("samplingPeriod must be positive");
+        }
+        this.samplingPeriod = samplingPeriod;
+    }
+
+    @Override
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(chain).append('\n');
+        sb.append(String.format("%d documents, %d timed%n", documents.get(), sampledDocuments.get()));
+        sb.append(String.format("%-36s %12s %12s %12s %10s%n", "stage", "tokens", "chars", "self ms", "ns/token"));
+        long[] self = getEstimatedSelfNanos();
+        long finalTokens = tokens.get(stageNames.length - 1);
+        for (int x = 0; x < stageNames.length; x++) {
+            sb.append(String.format("%-36s %12d %12d %12.1f %10.1f%n", stageNames[x], tokens.get(x), chars.get(x),
+                    self[x] / 1e6, finalTokens == 0 ? 0.0 : (double) self[x] / finalTokens));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (int x = 0; x < stageNames.length; x++) {
+            tokens.set(x, 0);
+            chars.set(x, 0);
+            sampledNanos.set(x, 0);
+        }
+        documents.set(0);
+        sampledDocuments.set(0);
+    }
+
+    private static long[] toArray(AtomicLongArray array) {
+        long[] values = new long[array.length()];
+        for (int x = 0; x < values.length; x++) {
+            values[x] = array.get(x);
+        }
+        return values;
+    }
+}
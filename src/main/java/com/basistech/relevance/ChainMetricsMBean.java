@@ -0,0 +1,52 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+/**
+ * JMX view of {@link ChainMetrics}. Arrays are indexed by stage, in chain order.
+ */
+public interface ChainMetricsMBean {
+    String getChain();
+
+    String[] getStageNames();
+
+    long getDocuments();
+
+    long getSampledDocuments();
+
+    /**
+     * @return tokens produced by each stage; zero for the input and char filters.
+     */
+    long[] getTokens();
+
+    /**
+     * @return chars read out of the input, stage 0, and of each char filter after it; zero for
+     * the tokenizer and token filters.
+     */
+    long[] getCharsRead();
+
+    /**
+     * @return estimated nanoseconds spent in each stage itself, excluding the stages it pulls from.
+     */
+    long[] getEstimatedSelfNanos();
+
+    int getSamplingPeriod();
+
+    void setSamplingPeriod(int samplingPeriod);
+
+    String summary();
+
+    void reset();
+}
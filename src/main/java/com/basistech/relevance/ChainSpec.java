@@ -0,0 +1,142 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable description of a whole analysis chain: char filters, tokenizer and token filters.
+ * The constructor takes a deep copy of the component specs, so later changes to the specs (or
+ * to their option maps) do not leak into a chain that is already keying a cache.
+ */
+public final class ChainSpec {
+    private final List<ComponentSpec> charFilterSpecs;
+    private final ComponentSpec tokenizerSpec;
+    private final List<ComponentSpec> tokenFilterSpecs;
+    private final int hashCode;
+
+    public ChainSpec(List<ComponentSpec> charFilterSpecs, ComponentSpec tokenizerSpec, List<ComponentSpec> tokenFilterSpecs) {
+        if (tokenizerSpec == null) {
+            throw new IllegalArgumentException("A chain needs a tokenizer");
+        }
+        this.charFilterSpecs = copy(charFilterSpecs);
+        this.tokenizerSpec = copy(tokenizerSpec);
+        this.tokenFilterSpecs = copy(tokenFilterSpecs);
+        this.hashCode = 31 * (31 * this.charFilterSpecs.hashCode() + this.tokenizerSpec.hashCode()) + this.tokenFilterSpecs.hashCode();
+    }
+
+    /**
+     * Parse a chain from the words of a command line, as in
+     * {@code -charfilter name opt=val ... -tokenizer name opt=val ... -tokenfilter name opt=val ...}.
+     * @throws IllegalArgumentException if the words do not make a chain.
+     */
+    public static ChainSpec parse(List<String> words) {
+        List<ComponentSpec> charFilters = Lists.newArrayList();
+        ComponentSpec tokenizer = null;
+        List<ComponentSpec> tokenFilters = Lists.newArrayList();
+        ComponentSpec current = null;
+        for (int x = 0; x < words.size(); x++) {
+            String word = words.get(x);
+            if ("-charfilter".equals(word) || "-tokenizer".equals(word) || "-tokenfilter".equals(word)) {
+                if (x == words.size() - 1) {
+                    throw new IllegalArgumentException("Missing component name after " + word);
+                }
+                current = new ComponentSpec(words.get(++x), new HashMap<String, String>());
+                if ("-charfilter".equals(word)) {
+                    charFilters.add(current);
+                } else if ("-tokenfilter".equals(word)) {
+                    tokenFilters.add(current);
+                } else if (tokenizer != null) {
+                    throw new IllegalArgumentException("Only one tokenizer.");
+                } else {
+                    tokenizer = current;
+                }
+            } else if (current != null) {
+                int eq = word.indexOf('=');
+                if (eq < 1) {
+                    throw new IllegalArgumentException("Options must be opt=val: " + word);
+                }
+                current.getOptions().put(word.substring(0, eq), word.substring(eq + 1));
+            } else {
+                throw new IllegalArgumentException("Unexpected argument " + word);
+            }
+        }
+        return new ChainSpec(charFilters, tokenizer, tokenFilters);
+    }
+
+    private static List<ComponentSpec> copy(List<ComponentSpec> specs) {
+        List<ComponentSpec> copies = Lists.newArrayList();
+        if (specs != null) {
+            for (ComponentSpec spec : specs) {
+                copies.add(copy(spec));
+            }
+        }
+        return ImmutableList.copyOf(copies);
+    }
+
+    private static ComponentSpec copy(ComponentSpec spec) {
+        // sorted, so that toString is stable enough to fingerprint.
+        Map<String, String> options = new TreeMap<String, String>();
+        if (spec.getOptions() != null) {
+            options.putAll(spec.getOptions());
+        }
+        return new ComponentSpec(spec.getName(), Collections.unmodifiableMap(options));
+    }
+
+    public List<ComponentSpec> getCharFilterSpecs() {
+        return charFilterSpecs;
+    }
+
+    public ComponentSpec getTokenizerSpec() {
+        return tokenizerSpec;
+    }
+
+    public List<ComponentSpec> getTokenFilterSpecs() {
+        return tokenFilterSpecs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        ChainSpec that = (ChainSpec) o;
+        return hashCode == that.hashCode
+                && tokenizerSpec.equals(that.tokenizerSpec)
+                && charFilterSpecs.equals(that.charFilterSpecs)
+                && tokenFilterSpecs.equals(that.tokenFilterSpecs);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return "charFilters=" + charFilterSpecs + " tokenizer=" + tokenizerSpec + " tokenFilters=" + tokenFilterSpecs;
+    }
+}
@@ -0,0 +1,246 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Counts by term, in an open-addressing hash table keyed directly on term chars. Terms are
+ * copied into one shared char pool when first seen, so counting a term that is already
+ * present allocates nothing. Callers supply the hash, so that one hash of the term can serve
+ * several structures.
+ */
+final class CharTermCounts {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private char[] pool = new char[16 * INITIAL_CAPACITY];
+    private int poolUsed;
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private int size;
+    // entry index + 1 per slot; 0 for empty. Kept at most half full.
+    private int[] table = new int[2 * INITIAL_CAPACITY];
+
+    /**
+     * A 64-bit hash of a term; the low 32 bits are what this table uses.
+     */
+    static long hash(char[] term, int offset, int length) {
+        long h = 0xcbf29ce484222325L ^ length;
+        for (int x = offset; x < offset + length; x++) {
+            h ^= term[x];
+            h *= 0x100000001b3L;
+        }
+        // finish with a strong mix, since FNV's low bits are weak.
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Add to a term's count, adding the term if it is new.
+     * @return the entry.
+     */
+    int add(char[] term, int offset, int length, int hash, long increment) {
+        int entry = entry(term, offset, length, hash);
+        counts[entry] += increment;
+        return entry;
+    }
+
+    /**
+     * Set a term's count, adding the term if it is new.
+     * @return the entry.
+     */
+    int set(char[] term, int offset, int length, int hash, long count) {
+        int entry = entry(term, offset, length, hash);
+        counts[entry] = count;
+        return entry;
+    }
+
+    /**
+     * @return the term's entry, or -1.
+     */
+    int find(char[] term, int offset, int length, int hash) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (hashes[entry] == hash && equals(entry, term, offset, length)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private int entry(char[] term, int offset, int length, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (hashes[entry] == hash && equals(entry, term, offset, length)) {
+                return entry;
+            }
+        }
+        if (size == starts.length) {
+            grow();
+            return entry(term, offset, length, hash);
+        }
+        if (poolUsed + length > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(poolUsed + length, pool.length * 2));
+        }
+        System.arraycopy(term, offset, pool, poolUsed, length);
+        int entry = size++;
+        starts[entry] = poolUsed;
+        lengths[entry] = length;
+        hashes[entry] = hash;
+        counts[entry] = 0;
+        poolUsed += length;
+        table[slot] = entry + 1;
+        return entry;
+    }
+
+    private boolean equals(int entry, char[] term, int offset, int length) {
+        if (lengths[entry] != length) {
+            return false;
+        }
+        int start = starts[entry];
+        for (int x = 0; x < length; x++) {
+            if (pool[start + x] != term[offset + x]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow() {
+        int capacity = starts.length * 2;
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        rehash(2 * capacity);
+    }
+
+    private void rehash(int tableSize) {
+        table = new int[tableSize];
+        int mask = tableSize - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = hashes[entry] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry + 1;
+        }
+    }
+
+    /**
+     * Drop all but the n highest counts, compacting the pool.
+     * @return the lowest count kept, or 0 if nothing is.
+     */
+    long retainTop(int n) {
+        int[] keep = top(n);
+        char[] newPool = new char[Math.max(16, pool.length)];
+        int newPoolUsed = 0;
+        int[] newStarts = new int[starts.length];
+        int[] newLengths = new int[starts.length];
+        int[] newHashes = new int[starts.length];
+        long[] newCounts = new long[starts.length];
+        for (int x = 0; x < keep.length; x++) {
+            int entry = keep[x];
+            System.arraycopy(pool, starts[entry], newPool, newPoolUsed, lengths[entry]);
+            newStarts[x] = newPoolUsed;
+            newLengths[x] = lengths[entry];
+            newHashes[x] = hashes[entry];
+            newCounts[x] = counts[entry];
+            newPoolUsed += lengths[entry];
+        }
+        pool = newPool;
+        poolUsed = newPoolUsed;
+        starts = newStarts;
+        lengths = newLengths;
+        hashes = newHashes;
+        counts = newCounts;
+        size = keep.length;
+        rehash(table.length);
+        return keep.length == 0 ? 0 : counts[keep.length - 1];
+    }
+
+    /**
+     * @return up to n entries with the highest counts, highest first.
+     */
+    int[] top(int n) {
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>(Math.max(1, Math.min(n, size)), new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long c1 = counts[o1];
+                long c2 = counts[o2];
+                return c1 < c2 ? -1 : (c1 == c2 ? 0 : 1);
+            }
+        });
+        for (int entry = 0; entry < size; entry++) {
+            if (heap.size() < n) {
+                heap.add(entry);
+            } else if (n > 0 && counts[entry] > counts[heap.peek()]) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        int[] top = new int[heap.size()];
+        for (int x = top.length - 1; x >= 0; x--) {
+            top[x] = heap.poll();
+        }
+        return top;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long count(int entry) {
+        return counts[entry];
+    }
+
+    int hash(int entry) {
+        return hashes[entry];
+    }
+
+    char[] pool() {
+        return pool;
+    }
+
+    int start(int entry) {
+        return starts[entry];
+    }
+
+    int length(int entry) {
+        return lengths[entry];
+    }
+
+    String term(int entry) {
+        return new String(pool, starts[entry], lengths[entry]);
+    }
+
+    /**
+     * @return roughly the bytes held.
+     */
+    long estimatedBytes() {
+        return 2L * pool.length + 20L * starts.length + 4L * table.length;
+    }
+}
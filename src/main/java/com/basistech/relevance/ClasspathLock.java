@@ -0,0 +1,182 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A record of the jars that a resolution produced, so that a later run with the same inputs
+ * can build its class loader without going near Aether. The lock is keyed by a digest of
+ * everything that went into the resolution (artifacts, repositories, mirrors). Each jar is
+ * recorded with its SHA-1; on read, a jar whose length and timestamp are unchanged is trusted,
+ * otherwise the checksum is recomputed. Any mismatch makes the lock stale.
+ */
+final class ClasspathLock {
+    private static final Logger LOG = LoggerFactory.getLogger(ClasspathLock.class);
+    private static final String KEY = "key";
+    private static final String COUNT = "jar.count";
+
+    private final File file;
+    private final String key;
+
+    ClasspathLock(File file, String resolutionInputs) {
+        this.file = file;
+        this.key = digest(resolutionInputs);
+    }
+
+    /**
+     * @return the locked jars, or null if the lock is missing, was written for other inputs, or
+     * refers to jars that have gone away or changed.
+     */
+    List<File> read() {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            props.load(is);
+        } catch (IOException e) {
+            LOG.warn("Failed to read classpath lock {}", file, e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+
+        if (!key.equals(props.getProperty(KEY))) {
+            LOG.info("Classpath lock {} is for a different configuration", file);
+            return null;
+        }
+
+        String countValue = props.getProperty(COUNT);
+        if (countValue == null) {
+            LOG.warn("Corrupt classpath lock {}: no jar count", file);
+            return null;
+        }
+        List<File> jars = Lists.newArrayList();
+        try {
+            int count = Integer.parseInt(countValue);
+            for (int x = 0; x < count; x++) {
+                String prefix = "jar." + x + ".";
+                String path = props.getProperty(prefix + "path");
+                String length = props.getProperty(prefix + "length");
+                String modified = props.getProperty(prefix + "modified");
+                String sha1 = props.getProperty(prefix + "sha1");
+                if (path == null || length == null || modified == null || sha1 == null) {
+                    LOG.warn("Corrupt classpath lock {}: incomplete entry for jar {}", file, x);
+                    return null;
+                }
+                File jar = new File(path);
+                if (!jar.isFile()) {
+                    LOG.info("Classpath lock {} refers to missing {}", file, jar);
+                    return null;
+                }
+                if ((jar.length() != Long.parseLong(length) || jar.lastModified() != Long.parseLong(modified))
+                        && !sha1.equals(checksum(jar))) {
+                    LOG.info("Classpath lock {}: {} has changed", file, jar);
+                    return null;
+                }
+                jars.add(jar);
+            }
+        } catch (NumberFormatException e) {
+            LOG.warn("Corrupt classpath lock {}", file, e);
+            return null;
+        }
+        return jars;
+    }
+
+    void write(List<File> jars) {
+        Properties props = new Properties();
+        props.setProperty(KEY, key);
+        props.setProperty(COUNT, Integer.toString(jars.size()));
+        for (int x = 0; x < jars.size(); x++) {
+            File jar = jars.get(x);
+            String prefix = "jar." + x + ".";
+            props.setProperty(prefix + "path", jar.getAbsolutePath());
+            props.setProperty(prefix + "length", Long.toString(jar.length()));
+            props.setProperty(prefix + "modified", Long.toString(jar.lastModified()));
+            props.setProperty(prefix + "sha1", checksum(jar));
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            LOG.warn("Cannot create directory for classpath lock {}", file);
+            return;
+        }
+        // write aside and rename, so that a concurrent reader never sees half a lock.
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            props.store(os, "resolved analyzer classpath");
+        } catch (IOException e) {
+            LOG.warn("Failed to write classpath lock {}", file, e);
+            return;
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            LOG.warn("Failed to replace classpath lock {}", file);
+        }
+    }
+
+    static String digest(String text) {
+        MessageDigest md = sha1();
+        return Hex.encodeHexString(md.digest(text.getBytes(Charsets.UTF_8)));
+    }
+
+    static String checksum(File file) {
+        MessageDigest md = sha1();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                md.update(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return Hex.encodeHexString(md.digest());
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The class loader for one set of resolved analysis jars. It looks in its own jars first, so a
+ * resolved version of an artifact the application also carries, such as
+ * lucene-analyzers-common, is the one that runs. Only the API that the application and the
+ * components must agree on goes to the parent first: the JDK, lucene-core's
+ * {@code org.apache.lucene.analysis} and {@code org.apache.lucene.util} classes, and the factory
+ * and resource loader base types of {@code org.apache.lucene.analysis.util}. A resolved jar that
+ * carries a different version of any of those, such as another lucene-core, gets the
+ * application's copy of them; that is logged once per jar.
+ */
+final class ComponentClassLoader extends URLClassLoader {
+    private static final Logger LOG = LoggerFactory.getLogger(ComponentClassLoader.class);
+    private static final String[] SHARED_PREFIXES = {"java.", "javax.", "sun.", "org.apache.lucene.util.", "org.apache.lucene.analysis.tokenattributes."};
+    // the packages whose own classes are shared, but not their subpackages.
+    private static final String[] SHARED_PACKAGES = {"org.apache.lucene.analysis"};
+    private static final Set<String> SHARED_CLASSES = ImmutableSet.of(
+            "org.apache.lucene.analysis.util.AbstractAnalysisFactory",
+            "org.apache.lucene.analysis.util.TokenizerFactory",
+            "org.apache.lucene.analysis.util.TokenFilterFactory",
+            "org.apache.lucene.analysis.util.CharFilterFactory",
+            "org.apache.lucene.analysis.util.MultiTermAwareComponent",
+            "org.apache.lucene.analysis.util.ResourceLoader",
+            "org.apache.lucene.analysis.util.ResourceLoaderAware");
+
+    private final Set<String> checkedJars = Sets.newHashSet();
+
+    ComponentClassLoader(URL[] urls, ClassLoader parent) {
+        super(urls, parent);
+    }
+
+    static boolean isShared(String className) {
+        if (SHARED_CLASSES.contains(className)) {
+            return true;
+        }
+        for (String prefix : SHARED_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        int dot = className.lastIndexOf('.');
+        String packageName = dot < 0 ? "" : className.substring(0, dot);
+        for (String sharedPackage : SHARED_PACKAGES) {
+            if (packageName.equals(sharedPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        Class<?> c = findLoadedClass(name);
+        if (c == null) {
+            if (isShared(name)) {
+                c = getParent().loadClass(name);
+                if (!name.startsWith("java")) {
+                    noteHidden(name);
+                }
+            } else {
+                try {
+                    c = findClass(name);
+                } catch (ClassNotFoundException e) {
+                    c = getParent().loadClass(name);
+                }
+            }
+        }
+        if (resolve) {
+            resolveClass(c);
+        }
+        return c;
+    }
+
+    /**
+     * Check, once per jar, whether a shared class the jar also carries is the same as the
+     * application's; a jar of the same version as the application's is harmless.
+     */
+    private void noteHidden(String className) {
+        String resource = className.replace('.', '/') + ".class";
+        URL own = findResource(resource);
+        if (own == null) {
+            return;
+        }
+        String path = own.getPath();
+        int bang = path.indexOf("!/");
+        String jar = bang < 0 ? path : path.substring(0, bang);
+        if (checkedJars.add(jar) && !sameContent(own, getParent().getResource(resource))) {
+            LOG.warn("{} has its own version of shared Lucene API classes, such as {}; the application's are used instead", jar, className);
+        }
+    }
+
+    private static boolean sameContent(URL a, URL b) {
+        if (b == null) {
+            return false;
+        }
+        InputStream as = null;
+        InputStream bs = null;
+        try {
+            as = a.openStream();
+            bs = b.openStream();
+            return IOUtils.contentEquals(as, bs);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(as);
+            IOUtils.closeQuietly(bs);
+        }
+    }
+
+    @Override
+    public URL getResource(String name) {
+        URL url = findResource(name);
+        return url != null ? url : getParent().getResource(name);
+    }
+
+    @Override
+    public Enumeration<URL> getResources(String name) throws IOException {
+        List<URL> urls = Lists.newArrayList(Collections.list(findResources(name)));
+        urls.addAll(Collections.list(getParent().getResources(name)));
+        return Collections.enumeration(urls);
+    }
+}
@@ -14,18 +14,23 @@
 
 package com.basistech.relevance;
 
+import java.util.Collections;
 import java.util.Map;
 
 /**
- * Facts about a Lucene component.
+ * Facts about a Lucene component. Two specs are equal when they have the same name and options,
+ * so specs can key caches of built components.
  */
 public class ComponentSpec {
     private final String name;
     private final Map<String, String> options;
 
+    /**
+     * @param options the options; null means none.
+     */
     public ComponentSpec(String name, Map<String, String> options) {
         this.name = name;
-        this.options = options;
+        this.options = options == null ? Collections.<String, String>emptyMap() : options;
     }
 
     public String getName() {
@@ -35,4 +40,27 @@ public class ComponentSpec {
     public Map<String, String> getOptions() {
         return options;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        ComponentSpec that = (ComponentSpec) o;
+        return name.equals(that.name) && options.equals(that.options);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + options.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name + options;
+    }
 }
@@ -0,0 +1,498 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.AnalyzerWrapper;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.benchmark.byTask.feeds.DocData;
+import org.apache.lucene.benchmark.byTask.feeds.NoMoreDataException;
+import org.apache.lucene.benchmark.byTask.feeds.TrecContentSource;
+import org.apache.lucene.benchmark.byTask.utils.Config;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Constants;
+import org.apache.lucene.util.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds an index of a TREC-style corpus with one analysis chain. One thread reads documents
+ * into a bounded queue and several threads feed them to a single IndexWriter, which analyzes
+ * and inverts on the calling thread. An index on disk records what built it in its commit
+ * data; when the chain, the corpus checksum and the Lucene version all match, it is reused
+ * rather than rebuilt.
+ */
+public final class CorpusIndexer {
+    private static final Logger LOG = LoggerFactory.getLogger(CorpusIndexer.class);
+    static final String NAME_FIELD = "docname";
+    static final String BODY_FIELD = "body";
+    private static final String FINGERPRINT_KEY = "rbl.fingerprint";
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    private static final double DEFAULT_RAM_BUFFER_MB = 64;
+    private static final DocData END = new DocData();
+
+    /**
+     * Where the index lives.
+     */
+    public enum DirectoryType {
+        /** Memory mapped files on disk; reusable across runs. */
+        MMAP,
+        /** On the heap, for small corpora; always rebuilt. */
+        RAM
+    }
+
+    /**
+     * Merge policies by name.
+     */
+    public enum MergePolicyType {
+        TIERED {
+            @Override
+            MergePolicy create() {
+                return new TieredMergePolicy();
+            }
+        },
+        LOG_BYTE_SIZE {
+            @Override
+            MergePolicy create() {
+                return new LogByteSizeMergePolicy();
+            }
+        },
+        LOG_DOC {
+            @Override
+            MergePolicy create() {
+                return new LogDocMergePolicy();
+            }
+        };
+
+        abstract MergePolicy create();
+    }
+
+    private final Analyzer analyzer;
+    private final String chainFingerprint;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private double ramBufferMB = DEFAULT_RAM_BUFFER_MB;
+    private MergePolicyType mergePolicy = MergePolicyType.TIERED;
+    private DirectoryType directoryType = DirectoryType.MMAP;
+    private final AtomicLong analysisNanos = new AtomicLong();
+    private final AtomicLong addNanos = new AtomicLong();
+
+    /**
+     * @param analyzer the chain to index with.
+     * @param chainFingerprint identifies the chain, as from {@link AnalyzerFactory#chainFingerprint(ChainSpec)}.
+     */
+    public CorpusIndexer(Analyzer analyzer, String chainFingerprint) {
+        this.analyzer = analyzer;
+        this.chainFingerprint = chainFingerprint;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        double ramBufferMB = DEFAULT_RAM_BUFFER_MB;
+        MergePolicyType mergePolicy = MergePolicyType.TIERED;
+        File lockFile = null;
+        int argx = 0;
+        while (argx < args.length && args[argx].startsWith("--")) {
+            String arg = args[argx];
+            if (argx == args.length - 1) {
+                usage();
+                System.exit(1);
+            }
+            if ("--threads".equals(arg)) {
+                threads = Integer.parseInt(args[++argx]);
+            } else if ("--queue".equals(arg)) {
+                queueCapacity = Integer.parseInt(args[++argx]);
+            } else if ("--ram-buffer".equals(arg)) {
+                ramBufferMB = Double.parseDouble(args[++argx]);
+            } else if ("--merge-policy".equals(arg)) {
+                mergePolicy = MergePolicyType.valueOf(args[++argx].toUpperCase(Locale.ROOT).replace('-', '_'));
+            } else if ("--lock".equals(arg)) {
+                lockFile = new File(args[++argx]);
+            } else {
+                usage();
+                System.exit(1);
+            }
+            argx++;
+        }
+        if (args.length - argx < 2) {
+            usage();
+            System.exit(1);
+        }
+        File docs = new File(args[argx++]);
+        File indexDir = new File(args[argx++]);
+        List<String> artifacts = Lists.newArrayList();
+        while (argx < args.length && !args[argx].startsWith("-")) {
+            artifacts.add(args[argx++]);
+        }
+        ChainSpec chainSpec;
+        try {
+            chainSpec = ChainSpec.parse(Arrays.asList(args).subList(argx, args.length));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(1);
+            return;
+        }
+
+        AnalyzerFactory analyzerFactory = new AnalyzerFactory();
+        analyzerFactory.setArtifacts(artifacts);
+        analyzerFactory.setClasspathLockFile(lockFile);
+        analyzerFactory.initialize();
+        CorpusIndexer indexer = new CorpusIndexer(analyzerFactory.newAnalyzer(chainSpec), analyzerFactory.chainFingerprint(chainSpec));
+        indexer.setThreads(threads);
+        indexer.setQueueCapacity(queueCapacity);
+        indexer.setRamBufferMB(ramBufferMB);
+        indexer.setMergePolicy(mergePolicy);
+        indexer.index(docs, indexDir).close();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: CorpusIndexer [options] docsDir indexDir group:artifact:version ... -tokenizer ... [-charfilter ...] [-tokenfilter ...]");
+        System.err.println("Options:");
+        System.err.println("  --threads n          indexing threads (default: one per core)");
+        System.err.println("  --queue n            documents read ahead (default 1000)");
+        System.err.println("  --ram-buffer mb      IndexWriter RAM buffer (default 64)");
+        System.err.println("  --merge-policy p     tiered (default), log-byte-size, or log-doc");
+        System.err.println("  --lock lockFile      record the resolved classpath, and reuse it when nothing has changed");
+    }
+
+    /**
+     * Index a corpus, or find an index of it that is already up to date.
+     * @param docs the corpus directory.
+     * @param indexDir where to put the index; ignored for {@link DirectoryType#RAM}.
+     * @return the directory holding the index, for the caller to close.
+     */
+    public Directory index(File docs, File indexDir) throws IOException {
+        long start = System.nanoTime();
+        String fingerprint = ClasspathLock.digest(chainFingerprint + '\n' + corpusChecksum(docs) + '\n' + Constants.LUCENE_MAIN_VERSION);
+        LOG.info("Corpus and chain checksummed in {}ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        Directory directory;
+        if (directoryType == DirectoryType.RAM) {
+            directory = new RAMDirectory();
+        } else {
+            directory = new MMapDirectory(indexDir);
+            if (fingerprint.equals(indexedFingerprint(directory))) {
+                LOG.info("Reusing index in {}", indexDir);
+                return directory;
+            }
+        }
+        try {
+            build(docs, directory, fingerprint);
+        } catch (IOException e) {
+            directory.close();
+            throw e;
+        } catch (RuntimeException e) {
+            directory.close();
+            throw e;
+        }
+        return directory;
+    }
+
+    private static String indexedFingerprint(Directory directory) throws IOException {
+        if (!DirectoryReader.indexExists(directory)) {
+            return null;
+        }
+        DirectoryReader reader = DirectoryReader.open(directory);
+        try {
+            return reader.getIndexCommit().getUserData().get(FINGERPRINT_KEY);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A digest of the content of every file in the corpus, with its relative path.
+     */
+    static String corpusChecksum(File docs) {
+        List<File> files = Lists.newArrayList();
+        listFiles(docs, files);
+        Collections.sort(files);
+        StringBuilder checksums = new StringBuilder();
+        int prefix = docs.getAbsolutePath().length();
+        for (File file : files) {
+            checksums.append(file.getAbsolutePath().substring(prefix)).append(' ').append(ClasspathLock.checksum(file)).append('\n');
+        }
+        return ClasspathLock.digest(checksums.toString());
+    }
+
+    private static void listFiles(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                listFiles(child, files);
+            } else {
+                files.add(child.getAbsoluteFile());
+            }
+        }
+    }
+
+    private void build(File docs, Directory directory, String fingerprint) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_44, new TimedAnalyzer(analyzer, analysisNanos));
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setRAMBufferSizeMB(ramBufferMB);
+        config.setMergePolicy(mergePolicy.create());
+        // one thread state per feeding thread, so that none waits for another's buffer.
+        config.setMaxThreadStates(Math.max(threads, IndexWriterConfig.DEFAULT_MAX_THREAD_STATES));
+        final IndexWriter writer = new IndexWriter(directory, config);
+        final BlockingQueue<DocData> queue = new ArrayBlockingQueue<DocData>(queueCapacity);
+        analysisNanos.set(0);
+        addNanos.set(0);
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> futures = Lists.newArrayList();
+        boolean committed = false;
+        try {
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return feed(queue, writer);
+                    }
+                }));
+            }
+            read(docs, queue, futures);
+            int count = 0;
+            for (Future<Integer> future : futures) {
+                count += future.get();
+            }
+            long indexed = System.nanoTime() - start;
+            Map<String, String> commitData = Maps.newHashMap();
+            commitData.put(FINGERPRINT_KEY, fingerprint);
+            writer.setCommitData(commitData);
+            writer.close();
+            committed = true;
+            long total = System.nanoTime() - start;
+            long analysis = analysisNanos.get();
+            LOG.info("Indexed {} documents in {}ms, {} docs/sec, on {} threads", new Object[] {count, TimeUnit.NANOSECONDS.toMillis(total),
+                String.format("%.1f", count / (total / 1e9)), threads});
+            LOG.info("Thread time: analysis {}ms, writing {}ms; commit and merges {}ms", new Object[] {TimeUnit.NANOSECONDS.toMillis(analysis),
+                TimeUnit.NANOSECONDS.toMillis(addNanos.get() - analysis), TimeUnit.NANOSECONDS.toMillis(total - indexed)});
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            if (!committed) {
+                writer.rollback();
+            }
+        }
+    }
+
+    /**
+     * Read the corpus into the queue, then put an end marker for each feeder.
+     */
+    private void read(File docs, BlockingQueue<DocData> queue, List<Future<Integer>> feeders) throws IOException, InterruptedException, ExecutionException {
+        Properties properties = new Properties();
+        properties.setProperty("docs.dir", docs.getAbsolutePath());
+        properties.setProperty("content.source.forever", "false");
+        properties.setProperty("content.source.log.step", "0");
+        // names are the bare DOCNOs the qrels use, without the source's _iteration suffix.
+        properties.setProperty("content.source.excludeIteration", "true");
+        properties.setProperty("print.props", "false");
+        TrecContentSource source = new TrecContentSource();
+        source.setConfig(new Config(properties));
+        try {
+            while (true) {
+                DocData docData;
+                try {
+                    docData = source.getNextDocData(new DocData());
+                } catch (NoMoreDataException e) {
+                    break;
+                }
+                // a feeder that fails stops taking, so don't block on a queue that will never drain.
+                while (!queue.offer(docData, 1, TimeUnit.SECONDS)) {
+                    for (Future<Integer> feeder : feeders) {
+                        if (feeder.isDone()) {
+                            feeder.get();
+                        }
+                    }
+                }
+            }
+        } finally {
+            source.close();
+        }
+        for (int t = 0; t < feeders.size(); t++) {
+            queue.put(END);
+        }
+    }
+
+    private int feed(BlockingQueue<DocData> queue, IndexWriter writer) throws IOException, InterruptedException {
+        Document document = new Document();
+        Field name = new StringField(NAME_FIELD, "", Field.Store.YES);
+        Field body = new TextField(BODY_FIELD, "", Field.Store.NO);
+        document.add(name);
+        document.add(body);
+        int count = 0;
+        long nanos = 0;
+        DocData docData;
+        while ((docData = queue.take()) != END) {
+            name.setStringValue(docData.getName());
+            String title = docData.getTitle();
+            body.setStringValue(title == null ? docData.getBody() : title + "\n" + docData.getBody());
+            long start = System.nanoTime();
+            writer.addDocument(document);
+            nanos += System.nanoTime() - start;
+            count++;
+        }
+        addNanos.addAndGet(nanos);
+        return count;
+    }
+
+    /**
+     * Adds up the time spent pulling tokens, which is the time spent in analysis, on every thread.
+     */
+    private static final class TimedAnalyzer extends AnalyzerWrapper {
+        private final Analyzer analyzer;
+        private final AtomicLong nanos;
+
+        TimedAnalyzer(Analyzer analyzer, AtomicLong nanos) {
+            this.analyzer = analyzer;
+            this.nanos = nanos;
+        }
+
+        @Override
+        protected Analyzer getWrappedAnalyzer(String fieldName) {
+            return analyzer;
+        }
+
+        @Override
+        protected TokenStreamComponents wrapComponents(String fieldName, TokenStreamComponents components) {
+            return new TokenStreamComponents(components.getTokenizer(), new TimedFilter(components.getTokenStream(), nanos));
+        }
+    }
+
+    private static final class TimedFilter extends TokenFilter {
+        private final AtomicLong total;
+        private long nanos;
+
+        TimedFilter(TokenStream input, AtomicLong total) {
+            super(input);
+            this.total = total;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            long start = System.nanoTime();
+            boolean more = input.incrementToken();
+            nanos += System.nanoTime() - start;
+            return more;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            long start = System.nanoTime();
+            super.reset();
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            total.addAndGet(nanos);
+            nanos = 0;
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @param queueCapacity how many documents the reader may get ahead of the indexing threads.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public double getRamBufferMB() {
+        return ramBufferMB;
+    }
+
+    public void setRamBufferMB(double ramBufferMB) {
+        this.ramBufferMB = ramBufferMB;
+    }
+
+    public MergePolicyType getMergePolicy() {
+        return mergePolicy;
+    }
+
+    public void setMergePolicy(MergePolicyType mergePolicy) {
+        this.mergePolicy = mergePolicy;
+    }
+
+    public DirectoryType getDirectoryType() {
+        return directoryType;
+    }
+
+    public void setDirectoryType(DirectoryType directoryType) {
+        this.directoryType = directoryType;
+    }
+}
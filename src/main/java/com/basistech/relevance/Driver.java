@@ -16,37 +16,65 @@ package com.basistech.relevance;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
 import org.apache.commons.io.IOUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
-import java.util.HashMap;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Command line to AnalyzerFactory experiments
+ * Command line to AnalyzerFactory experiments. With --batch, the input is a directory, a
+ * file-name glob or an @manifest of paths, and the output is a directory. With --compare, several
+ * chains run over the same input, and the output is a directory with a file per chain.
  */
 public final class Driver {
+    static final String FIRST_TOKEN_RECORD = "total\tfirst-token\t";
+    private static final Logger LOG = LoggerFactory.getLogger(Driver.class);
+    // wall clock time of the first token this JVM produced; zero until then.
+    private static final AtomicLong FIRST_TOKEN_MILLIS = new AtomicLong();
     private List<String> artifactSpecs = Lists.newArrayList();
-    private List<ComponentSpec> charFilterSpecs = Lists.newArrayList();
-    private ComponentSpec tokenizerSpec;
-    private List<ComponentSpec> tokenFilterSpecs = Lists.newArrayList();
-    private ComponentSpec currentCharFilterSpec;
-    private ComponentSpec currentTokenFilterSpec;
-    private boolean inTokenizerSpec;
+    private ChainSpec chainSpec;
     private AnalyzerFactory analyzerFactory;
     private String inputFile;
     private String outputFile;
+    private File classpathLockFile;
+    private File snapshotDirectory;
+    private File resourceDirectory;
+    private Mirror mirror;
+    private boolean offline;
+    private String updatePolicy;
+    private boolean batch;
+    private boolean sharded;
+    private boolean incremental;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean stream;
+    private SegmentReader.Boundary segmentBoundary = SegmentReader.Boundary.LINE;
+    private int maxSegmentChars = 64 * 1024;
+    private OutputFormat outputFormat = OutputFormat.TEXT;
+    private int outputFields;
+    private boolean metrics;
+    private File startupReportFile;
+    private int samplingPeriod = 1;
+    private File compareChainsFile;
+    private boolean statistics;
+    private int topTerms = 50;
+    private int sketchWidth;
 
     private Driver() {
         //
@@ -54,7 +82,7 @@ public final class Driver {
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.err.println("Usage: Driver inputFile outputFile group:artifact:version [-charfilter charfilter opt=val opt=val -char ... ] tokenizer opt=val opt=val ... [-tokenfilter tokenfilters ...]");
+            usage();
             return;
         }
 
@@ -63,107 +91,338 @@ public final class Driver {
         that.setupFactory();
         try {
             that.processData();
+            that.reportMetrics();
         } catch (IOException e) {
             System.err.println("IO error");
         }
     }
 
     private void processData() throws IOException {
+        if (statistics) {
+            List<BatchProcessor.Input> inputs;
+            if (batch) {
+                inputs = BatchProcessor.listInputs(inputFile);
+            } else {
+                inputs = Lists.newArrayList(new BatchProcessor.Input(new File(inputFile), inputFile));
+            }
+            StatisticsProcessor processor = new StatisticsProcessor(analyzerFactory, threads, segmentBoundary, maxSegmentChars, sketchWidth, topTerms);
+            TermStatistics termStatistics = processor.process(inputs);
+            PrintWriter report = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile), Charsets.UTF_8));
+            try {
+                termStatistics.report(report, topTerms);
+            } finally {
+                report.close();
+            }
+            return;
+        }
+        if (batch) {
+            BatchManifest manifest = null;
+            if (incremental) {
+                manifest = new BatchManifest(new File(outputFile, BatchManifest.FILE_NAME),
+                        BatchProcessor.manifestFingerprint(analyzerFactory, chainSpec, outputFormat, outputFields));
+            }
+            BatchProcessor processor = new BatchProcessor(analyzerFactory, threads, sharded, outputFormat, outputFields, manifest);
+            processor.process(BatchProcessor.listInputs(inputFile), new File(outputFile));
+            return;
+        }
+        if (compareChainsFile != null) {
+            Reader input = Inputs.openReader(new File(inputFile));
+            try {
+                new ChainComparison(analyzerFactory, compareChains(), threads, outputFormat, outputFields).compare(input, new File(outputFile), System.err);
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+            return;
+        }
+
         Reader input = null;
-        PrintWriter writer = null;
+        TokenSink sink = null;
         try {
-            input = new InputStreamReader(new FileInputStream(inputFile), Charsets.UTF_8);
-            writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile), Charsets.UTF_8));
+            input = Inputs.openReader(new File(inputFile));
             Analyzer analyzer = analyzerFactory.newAnalyzer();
-            TokenStream tokens = analyzer.tokenStream("dummy", input);
-            CharTermAttribute charTerm = tokens.getAttribute(CharTermAttribute.class);
-            TypeAttribute type = tokens.getAttribute(TypeAttribute.class);
-            while (tokens.incrementToken()) {
-                writer.append(charTerm.toString());
-                writer.append("\t");
-                writer.append(type.type());
-                writer.append("\n");
+            if (stream) {
+                // offsets are the point of streaming.
+                sink = outputFormat.open(new File(outputFile), outputFields | TokenSink.OFFSETS);
+                SegmentReader segments = new SegmentReader(input, segmentBoundary, maxSegmentChars);
+                StreamingProcessor processor = new StreamingProcessor(analyzer);
+                processor.process(segments, sink);
+                System.err.println(String.format("%d segments, %d tokens", processor.getSegments(), processor.getTokens()));
+            } else {
+                sink = outputFormat.open(new File(outputFile), outputFields);
+                sink.startDocument(null);
+                analyze(analyzer, input, sink);
+                sink.endDocument();
             }
         } finally {
             IOUtils.closeQuietly(input);
-            IOUtils.closeQuietly(writer);
+            Closeables.closeQuietly(sink);
         }
     }
 
+    /**
+     * @return the chains from the chains file, after the command line's own chain if it has one.
+     */
+    private Map<String, ChainSpec> compareChains() throws IOException {
+        Map<String, ChainSpec> chains = Maps.newLinkedHashMap();
+        if (chainSpec != null) {
+            chains.put("command-line", chainSpec);
+        }
+        chains.putAll(AnalysisServer.readChains(compareChainsFile));
+        if (chains.isEmpty()) {
+            throw new IOException("No chains in " + compareChainsFile);
+        }
+        return chains;
+    }
+
+    private void reportMetrics() throws IOException {
+        long firstToken = FIRST_TOKEN_MILLIS.get() == 0 ? -1 : FIRST_TOKEN_MILLIS.get() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        if (metrics) {
+            System.err.print(analyzerFactory.getResolutionMetrics().summary());
+            System.err.println(String.format("first token: %d ms after JVM start", firstToken));
+            System.err.print(analyzerFactory.getResourcePool().summary());
+        }
+        for (ChainMetrics chainMetrics : analyzerFactory.getChainMetrics()) {
+            System.err.print(chainMetrics.summary());
+        }
+        if (startupReportFile != null) {
+            PrintWriter report = new PrintWriter(new OutputStreamWriter(new FileOutputStream(startupReportFile), Charsets.UTF_8));
+            try {
+                analyzerFactory.getResolutionMetrics().report(report);
+                report.print(FIRST_TOKEN_RECORD);
+                report.println(firstToken);
+            } finally {
+                report.close();
+            }
+        }
+    }
+
+    /**
+     * Run one document through an analyzer into a sink.
+     * @return the number of tokens.
+     */
+    static long analyze(Analyzer analyzer, Reader input, TokenSink sink) throws IOException {
+        long count = 0;
+        TokenStream tokens = analyzer.tokenStream("dummy", input);
+        try {
+            sink.bind(tokens);
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                if (count == 0 && FIRST_TOKEN_MILLIS.get() == 0) {
+                    FIRST_TOKEN_MILLIS.compareAndSet(0, System.currentTimeMillis());
+                }
+                sink.token(0);
+                count++;
+            }
+            tokens.end();
+        } finally {
+            // closing releases the reader, and lets the analyzer reuse the components for the next document.
+            tokens.close();
+        }
+        return count;
+    }
+
     private void setupFactory() {
         analyzerFactory = new AnalyzerFactory();
         analyzerFactory.setArtifacts(artifactSpecs);
-        analyzerFactory.setCharFilterSpecs(charFilterSpecs);
-        analyzerFactory.setTokenFilterSpecs(tokenFilterSpecs);
-        analyzerFactory.setTokenizerSpec(tokenizerSpec);
+        if (chainSpec != null) {
+            analyzerFactory.setCharFilterSpecs(chainSpec.getCharFilterSpecs());
+            analyzerFactory.setTokenFilterSpecs(chainSpec.getTokenFilterSpecs());
+            analyzerFactory.setTokenizerSpec(chainSpec.getTokenizerSpec());
+        }
+        if (snapshotDirectory != null) {
+            useSnapshot();
+        }
+        analyzerFactory.setClasspathLockFile(classpathLockFile);
+        analyzerFactory.setResourceDirectory(resourceDirectory);
+        if (mirror != null) {
+            analyzerFactory.setMirrors(Collections.singletonList(mirror));
+        }
+        analyzerFactory.setOffline(offline);
+        analyzerFactory.setUpdatePolicy(updatePolicy);
+        analyzerFactory.setInstrumented(metrics);
+        analyzerFactory.setSamplingPeriod(samplingPeriod);
         analyzerFactory.initialize();
     }
 
-    private void closeOutCurrent() {
-        if (currentCharFilterSpec != null) {
-            charFilterSpecs.add(currentCharFilterSpec);
-            currentCharFilterSpec = null;
-        } else if (currentTokenFilterSpec != null) {
-            tokenFilterSpecs.add(currentTokenFilterSpec);
-            currentTokenFilterSpec = null;
-        } else if (inTokenizerSpec) {
-            inTokenizerSpec = false;
+    private void useSnapshot() {
+        if (classpathLockFile == null) {
+            classpathLockFile = new File(snapshotDirectory, SnapshotBuilder.LOCK);
+        }
+        File archive = new File(snapshotDirectory, SnapshotBuilder.ARCHIVE);
+        if (archive.isFile()) {
+            boolean mapped = false;
+            for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                mapped |= option.startsWith("-XX:SharedArchiveFile=");
+            }
+            if (!mapped) {
+                LOG.info("Start the JVM with @{} to use the snapshot's class data archive", new File(snapshotDirectory, SnapshotBuilder.JVM_OPTIONS));
+            }
         }
     }
 
+    private static void usage() {
+        System.err.println("Usage: Driver [options] inputFile outputFile group:artifact:version ... group:artifact:version [-charfilter charfilter opt=val opt=val -char ... ] -tokenizer tokenizer opt=val opt=val ... [-tokenfilter tokenfilters ...]");
+        System.err.println("Options:");
+        System.err.println("  --lock lockFile   record the resolved classpath, and reuse it when nothing has changed");
+        System.err.println("  --snapshot dir    start from a snapshot made by SnapshotBuilder for the same artifacts");
+        System.err.println("  --resources dir   look up stop word lists, synonyms and other component resources here first");
+        System.err.println("  --offline         resolve from the local repository and file: mirrors only, checking nothing for updates");
+        System.err.println("  --mirror location resolve everything through this mirror, a URL or a directory laid out as a");
+        System.err.println("                    Maven repository, in place of the default mirror");
+        System.err.println("  --update-policy p how often to check repositories for updates: never, daily, always or interval:minutes");
+        System.err.println("  --batch           input is a directory, a file-name glob, or @manifest; output is a directory");
+        System.err.println("  --threads n       batch worker threads (default: one per core)");
+        System.err.println("  --incremental     with --batch, skip inputs unchanged since the last run into the same output");
+        System.err.println("                    directory with the same chain, keeping their output");
+        System.err.println("  --sharded         batch output in one file per worker rather than one per document");
+        System.err.println("  --stream          analyze the input in bounded segments; output has global offsets");
+        System.err.println("  --segment mode    segment boundary: line (default), blank-line, or max-chars");
+        System.err.println("  --max-chars n     largest segment, in chars (default 65536)");
+        System.err.println("  --format f        token output: text (default) or binary, read with BinaryTokenReader");
+        System.err.println("  --with list       also output some of offsets,positions,flags");
+        System.err.println("  --compare file    run each chain in a chains file (name: -tokenizer ...) over one decoding of the");
+        System.err.println("                    input, in parallel; output is a directory; the command-line chain is optional");
+        System.err.println("  --stats           write vocabulary, top terms, type and length statistics instead of tokens;");
+        System.err.println("                    with --batch, input files are spread over --threads workers");
+        System.err.println("  --top n           with --stats, how many top terms (default 50)");
+        System.err.println("  --sketch width    with --stats, constant memory: count-min sketch of this width, estimated counts");
+        System.err.println("  --metrics         count and time each stage of the chain, and startup; summary on stderr, live over JMX");
+        System.err.println("  --sample n        with --metrics, time one document in n (default 1)");
+        System.err.println("  --startup-report file  write startup phase times, per-artifact resolution and time to first");
+        System.err.println("                    token, tab-separated");
+        System.err.println("Input may be gzip, bzip2 or (with zstd-jni on the classpath) zstd compressed.");
+    }
+
     private void requireAnotherArg(int argx, String[] args) {
-        if (argx == args.length - 1) {
+        if (argx >= args.length - 1) {
             System.err.println("Missing argument");
-            System.err.println("Usage: Driver group:artifact:version ... group:artifact:version [-charfilter charfilter opt=val opt=val -char ... ] -tokenizer tokenizer opt=val opt=val ... [-tokenfilter tokenfilters ...]");
+            usage();
             System.exit(1);
         }
     }
 
     private void parseArgs(String[] args) {
-        inputFile = args[0];
-        outputFile = args[1];
-        int argx = 2;
-        while (argx < args.length && args[argx].charAt(0) != '-') {
-            artifactSpecs.add(args[argx++]);
-        }
-        for (; argx < args.length; argx++) {
+        int argx = 0;
+        while (argx < args.length && args[argx].startsWith("--")) {
             String arg = args[argx];
-            if ("-charfilter".equals(arg)) {
-                closeOutCurrent();
+            if ("--lock".equals(arg)) {
                 requireAnotherArg(argx, args);
-                arg = args[++argx];
-                currentCharFilterSpec = new ComponentSpec(arg, new HashMap<String, String>());
-                charFilterSpecs.add(currentCharFilterSpec);
-            } else if (currentCharFilterSpec != null) {
-                addOption(currentCharFilterSpec.getOptions(), arg);
-            } else if ("-tokenfilter".equals(arg)) {
-                closeOutCurrent();
+                classpathLockFile = new File(args[++argx]);
+            } else if ("--snapshot".equals(arg)) {
                 requireAnotherArg(argx, args);
-                arg = args[++argx];
-                currentTokenFilterSpec = new ComponentSpec(arg, new HashMap<String, String>());
-                tokenFilterSpecs.add(currentTokenFilterSpec);
-            } else if (currentTokenFilterSpec != null) {
-                addOption(currentTokenFilterSpec.getOptions(), arg);
-            } else if ("-tokenizer".equals(arg)) {
-                closeOutCurrent();
+                snapshotDirectory = new File(args[++argx]);
+            } else if ("--resources".equals(arg)) {
                 requireAnotherArg(argx, args);
-                if (tokenizerSpec != null) {
-                    System.err.println("Only one tokenizer.");
-                    System.exit(1);
-                }
-                arg = args[++argx];
-                tokenizerSpec = new ComponentSpec(arg, new HashMap<String, String>());
-                inTokenizerSpec = true;
-            } else if (inTokenizerSpec) {
-                addOption(tokenizerSpec.getOptions(), arg);
+                resourceDirectory = new File(args[++argx]);
+            } else if ("--offline".equals(arg)) {
+                offline = true;
+            } else if ("--mirror".equals(arg)) {
+                requireAnotherArg(argx, args);
+                mirror = parseMirror(args[++argx]);
+            } else if ("--update-policy".equals(arg)) {
+                requireAnotherArg(argx, args);
+                updatePolicy = args[++argx].toLowerCase(Locale.ROOT);
+            } else if ("--batch".equals(arg)) {
+                batch = true;
+            } else if ("--sharded".equals(arg)) {
+                sharded = true;
+            } else if ("--incremental".equals(arg)) {
+                incremental = true;
+            } else if ("--threads".equals(arg)) {
+                requireAnotherArg(argx, args);
+                threads = Integer.parseInt(args[++argx]);
+            } else if ("--stream".equals(arg)) {
+                stream = true;
+            } else if ("--segment".equals(arg)) {
+                requireAnotherArg(argx, args);
+                segmentBoundary = SegmentReader.Boundary.valueOf(args[++argx].toUpperCase(Locale.ROOT).replace('-', '_'));
+            } else if ("--max-chars".equals(arg)) {
+                requireAnotherArg(argx, args);
+                maxSegmentChars = Integer.parseInt(args[++argx]);
+            } else if ("--format".equals(arg)) {
+                requireAnotherArg(argx, args);
+                outputFormat = OutputFormat.valueOf(args[++argx].toUpperCase(Locale.ROOT));
+            } else if ("--with".equals(arg)) {
+                requireAnotherArg(argx, args);
+                outputFields = parseFields(args[++argx]);
+            } else if ("--compare".equals(arg)) {
+                requireAnotherArg(argx, args);
+                compareChainsFile = new File(args[++argx]);
+            } else if ("--stats".equals(arg)) {
+                statistics = true;
+            } else if ("--top".equals(arg)) {
+                requireAnotherArg(argx, args);
+                topTerms = Integer.parseInt(args[++argx]);
+            } else if ("--sketch".equals(arg)) {
+                requireAnotherArg(argx, args);
+                sketchWidth = Integer.parseInt(args[++argx]);
+            } else if ("--metrics".equals(arg)) {
+                metrics = true;
+            } else if ("--startup-report".equals(arg)) {
+                requireAnotherArg(argx, args);
+                startupReportFile = new File(args[++argx]);
+            } else if ("--sample".equals(arg)) {
+                requireAnotherArg(argx, args);
+                samplingPeriod = Integer.parseInt(args[++argx]);
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.exit(1);
             }
+            argx++;
+        }
+        if (threads < 1) {
+            System.err.println("--threads must be at least 1");
+            System.exit(1);
+        }
+        if (incremental && (!batch || sharded)) {
+            System.err.println("--incremental needs --batch, without --sharded");
+            System.exit(1);
+        }
+        requireAnotherArg(argx, args);
+        inputFile = args[argx++];
+        outputFile = args[argx++];
+        while (argx < args.length && args[argx].charAt(0) != '-') {
+            artifactSpecs.add(args[argx++]);
+        }
+        if (compareChainsFile != null && argx == args.length) {
+            return;
+        }
+        try {
+            chainSpec = ChainSpec.parse(Arrays.asList(args).subList(argx, args.length));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(1);
         }
-        closeOutCurrent();
     }
 
-    private void addOption(Map<String, String> options, String arg) {
-        String[] pieces = arg.split("=");
-        options.put(pieces[0], pieces[1]);
+    private static Mirror parseMirror(String location) {
+        if (location.contains(":/")) {
+            return new Mirror("mirror", location, "*");
+        }
+        File directory = new File(location);
+        if (!directory.isDirectory()) {
+            System.err.println("Mirror " + location + " is neither a URL nor a directory");
+            System.exit(1);
+        }
+        return Mirror.local(directory);
+    }
+
+    private static int parseFields(String list) {
+        int fields = 0;
+        for (String field : list.split(",")) {
+            if ("offsets".equals(field)) {
+                fields |= TokenSink.OFFSETS;
+            } else if ("positions".equals(field)) {
+                fields |= TokenSink.POSITIONS;
+            } else if ("flags".equals(field)) {
+                fields |= TokenSink.FLAGS;
+            } else {
+                System.err.println("Unknown output field " + field);
+                System.exit(1);
+            }
+        }
+        return fields;
     }
 
 }
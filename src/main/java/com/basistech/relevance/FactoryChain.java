@@ -0,0 +1,174 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.util.AbstractAnalysisFactory;
+import org.apache.lucene.analysis.util.CharFilterFactory;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+import org.apache.lucene.analysis.util.TokenizerFactory;
+import org.apache.lucene.util.CloseableThreadLocal;
+
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * The factories for one {@link ChainSpec}, looked up and constructed once. Lucene factories are
+ * safe to share once constructed, so any number of analyzers can be made from one of these, and
+ * chains with components in common share them through a {@link ResourcePool}.
+ */
+final class FactoryChain {
+    private final ChainSpec spec;
+    private final ResourcePool pool;
+    private final List<ResourcePool.Shared<?>> shared = Lists.newArrayList();
+    private final List<CharFilterFactory> charFilterFactories;
+    private final TokenizerFactory tokenizerFactory;
+    private final List<TokenFilterFactory> tokenFilterFactories;
+
+    /**
+     * @param pool where the factories come from; they go back with {@link #release()}.
+     * @param loader for the resources of the factories that load any.
+     */
+    FactoryChain(ChainSpec spec, AnalysisSpi spi, ResourcePool pool, ResourceLoader loader) {
+        this.spec = spec;
+        this.pool = pool;
+        try {
+            List<CharFilterFactory> charFilters = Lists.newArrayList();
+            for (ComponentSpec charFilterSpec : spec.getCharFilterSpecs()) {
+                charFilters.add(acquire(spi.charFilters(), charFilterSpec, loader));
+            }
+            tokenizerFactory = acquire(spi.tokenizers(), spec.getTokenizerSpec(), loader);
+            List<TokenFilterFactory> tokenFilters = Lists.newArrayList();
+            for (ComponentSpec tokenFilterSpec : spec.getTokenFilterSpecs()) {
+                tokenFilters.add(acquire(spi.tokenFilters(), tokenFilterSpec, loader));
+            }
+            charFilterFactories = ImmutableList.copyOf(charFilters);
+            tokenFilterFactories = ImmutableList.copyOf(tokenFilters);
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private <S extends AbstractAnalysisFactory> S acquire(SpiLookup<S> lookup, ComponentSpec componentSpec, ResourceLoader loader) {
+        ResourcePool.Shared<S> factory = pool.acquire(lookup, componentSpec, loader);
+        shared.add(factory);
+        return factory.get();
+    }
+
+    /**
+     * Give the factories back to the pool, once this chain is out of the cache. Analyzers already
+     * made from it keep working.
+     */
+    synchronized void release() {
+        for (ResourcePool.Shared<?> factory : shared) {
+            pool.release(factory);
+        }
+        shared.clear();
+    }
+
+    ChainSpec getSpec() {
+        return spec;
+    }
+
+    /**
+     * @return the factories, in chain order: char filters, tokenizer, token filters.
+     */
+    List<AbstractAnalysisFactory> getFactories() {
+        List<AbstractAnalysisFactory> factories = Lists.<AbstractAnalysisFactory>newArrayList(charFilterFactories);
+        factories.add(tokenizerFactory);
+        factories.addAll(tokenFilterFactories);
+        return factories;
+    }
+
+    Analyzer newAnalyzer() {
+        return new Analyzer() {
+            @Override
+            protected Reader initReader(String fieldName, Reader reader) {
+                // here rather than in createComponents, so that reused components get them too.
+                for (CharFilterFactory charFilterFactory : charFilterFactories) {
+                    reader = charFilterFactory.create(reader);
+                }
+                return reader;
+            }
+
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+                Tokenizer tokenizer = tokenizerFactory.create(reader);
+                TokenStream filter = tokenizer;
+                for (TokenFilterFactory tokenFilterFactory : tokenFilterFactories) {
+                    filter = tokenFilterFactory.create(filter);
+                }
+                return new TokenStreamComponents(tokenizer, filter);
+            }
+        };
+    }
+
+    /**
+     * An analyzer that records each stage into the given metrics. Each thread's components get
+     * their own probe, which the char filters, made separately in initReader, find by thread.
+     */
+    Analyzer newAnalyzer(final ChainMetrics metrics) {
+        // stage 0 is the raw input, so chars read are counted even with no char filters.
+        final int tokenizerStage = 1 + charFilterFactories.size();
+        return new Analyzer() {
+            private final CloseableThreadLocal<ChainMetrics.Probe> probes = new CloseableThreadLocal<ChainMetrics.Probe>();
+
+            private ChainMetrics.Probe probe() {
+                ChainMetrics.Probe probe = probes.get();
+                if (probe == null) {
+                    probe = metrics.newProbe();
+                    probes.set(probe);
+                }
+                return probe;
+            }
+
+            @Override
+            protected Reader initReader(String fieldName, Reader reader) {
+                ChainMetrics.Probe probe = probe();
+                reader = new InstrumentedStages.TimedCharFilter(reader, probe, 0);
+                int stage = 1;
+                for (CharFilterFactory charFilterFactory : charFilterFactories) {
+                    reader = new InstrumentedStages.TimedCharFilter(charFilterFactory.create(reader), probe, stage++);
+                }
+                return reader;
+            }
+
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+                ChainMetrics.Probe probe = probe();
+                Tokenizer tokenizer = tokenizerFactory.create(reader);
+                int stage = tokenizerStage;
+                TokenStream filter = new InstrumentedStages.TimedTokenFilter(tokenizer, probe, stage++, tokenFilterFactories.isEmpty());
+                for (TokenFilterFactory tokenFilterFactory : tokenFilterFactories) {
+                    boolean outermost = stage == tokenizerStage + tokenFilterFactories.size();
+                    filter = new InstrumentedStages.TimedTokenFilter(tokenFilterFactory.create(filter), probe, stage++, outermost);
+                }
+                return new TokenStreamComponents(tokenizer, filter);
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                probes.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,86 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens input files, recognizing compressed files by their magic numbers rather than their names.
+ * gzip and bzip2 are always available; zstd works when zstd-jni is on the classpath.
+ */
+final class Inputs {
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final String ZSTD_INPUT_STREAM = "com.github.luben.zstd.ZstdInputStream";
+
+    private Inputs() {
+        // utility
+    }
+
+    static InputStream open(File file) throws IOException {
+        InputStream raw = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            raw.mark(4);
+            int b0 = raw.read();
+            int b1 = raw.read();
+            int b2 = raw.read();
+            int b3 = raw.read();
+            raw.reset();
+            if (b0 == 0x1f && b1 == 0x8b) {
+                return new BufferedInputStream(new GZIPInputStream(raw, BUFFER_SIZE), BUFFER_SIZE);
+            } else if (b0 == 'B' && b1 == 'Z' && b2 == 'h') {
+                return new BufferedInputStream(new BZip2CompressorInputStream(raw), BUFFER_SIZE);
+            } else if (b0 == 0x28 && b1 == 0xb5 && b2 == 0x2f && b3 == 0xfd) {
+                return new BufferedInputStream(zstd(raw, file), BUFFER_SIZE);
+            }
+            return raw;
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    static Reader openReader(File file) throws IOException {
+        return new InputStreamReader(open(file), Charsets.UTF_8);
+    }
+
+    private static InputStream zstd(InputStream raw, File file) throws IOException {
+        try {
+            Constructor<?> constructor = Class.forName(ZSTD_INPUT_STREAM).getConstructor(InputStream.class);
+            return (InputStream) constructor.newInstance(raw);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(file + " is zstd-compressed; add com.github.luben:zstd-jni to the classpath to read it");
+        } catch (InvocationTargetException e) {
+            throw new IOException("Failed to open zstd stream for " + file, e.getCause());
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
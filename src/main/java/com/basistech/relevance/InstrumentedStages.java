@@ -0,0 +1,124 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import org.apache.lucene.analysis.CharFilter;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Wrappers that record each stage of a chain into a {@link ChainMetrics.Probe}. Every wrapper
+ * counts; only sampled documents pay for clock reads.
+ */
+final class InstrumentedStages {
+    private InstrumentedStages() {
+        // holder
+    }
+
+    /**
+     * Sits over the raw input or after a char filter, counting the chars read through it. Being
+     * a CharFilter itself, it keeps the offset correction chain intact.
+     */
+    static final class TimedCharFilter extends CharFilter {
+        private final ChainMetrics.Probe probe;
+        private final int stage;
+
+        TimedCharFilter(Reader input, ChainMetrics.Probe probe, int stage) {
+            super(input);
+            this.probe = probe;
+            this.stage = stage;
+        }
+
+        @Override
+        protected int correct(int currentOff) {
+            return currentOff;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int count;
+            if (probe.sampled) {
+                long start = System.nanoTime();
+                count = input.read(cbuf, off, len);
+                probe.nanos[stage] += System.nanoTime() - start;
+            } else {
+                count = input.read(cbuf, off, len);
+            }
+            if (count > 0) {
+                probe.chars[stage] += count;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Sits after the tokenizer or a token filter, counting and timing what comes out of it. The
+     * outermost one also starts and ends documents on the probe.
+     */
+    static final class TimedTokenFilter extends TokenFilter {
+        private final ChainMetrics.Probe probe;
+        private final int stage;
+        private final boolean outermost;
+
+        TimedTokenFilter(TokenStream input, ChainMetrics.Probe probe, int stage, boolean outermost) {
+            super(input);
+            this.probe = probe;
+            this.stage = stage;
+            this.outermost = outermost;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            boolean more;
+            if (probe.sampled) {
+                long start = System.nanoTime();
+                more = input.incrementToken();
+                probe.nanos[stage] += System.nanoTime() - start;
+            } else {
+                more = input.incrementToken();
+            }
+            if (more) {
+                probe.tokens[stage]++;
+            }
+            return more;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            if (outermost) {
+                probe.startDocument();
+            }
+            // some tokenizers read their input here, so this is part of the stage's time.
+            if (probe.sampled) {
+                long start = System.nanoTime();
+                super.reset();
+                probe.nanos[stage] += System.nanoTime() - start;
+            } else {
+                super.reset();
+            }
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            if (outermost) {
+                probe.endDocument();
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small synchronized least-recently-used cache that keeps hit, miss and eviction counts.
+ * Entries can be bounded by count, and also by total weight, such as an estimate of bytes.
+ */
+final class LruCache<K, V> {
+    private final Map<K, V> map;
+    private final Weigher<? super K, ? super V> weigher;
+    private RemovalListener<? super K, ? super V> removalListener;
+    private int maxSize;
+    private long maxWeight = Long.MAX_VALUE;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * The weight of an entry, which must not change while it is in the cache.
+     */
+    interface Weigher<K, V> {
+        long weigh(K key, V value);
+    }
+
+    /**
+     * Told of each entry that leaves the cache, by eviction, removal or clearing; called with the
+     * cache locked.
+     */
+    interface RemovalListener<K, V> {
+        void removed(K key, V value);
+    }
+
+    LruCache(int maxSize) {
+        this(maxSize, null);
+    }
+
+    LruCache(int maxSize, Weigher<? super K, ? super V> weigher) {
+        this.weigher = weigher;
+        setMaxSize(maxSize);
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true);
+    }
+
+    synchronized V get(K key) {
+        V value = map.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Add a value unless one is already present.
+     * @return the value now in the cache for the key; the existing one if another thread won the race.
+     */
+    synchronized V putIfAbsent(K key, V value) {
+        V existing = map.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        map.put(key, value);
+        weight += weigh(key, value);
+        trim();
+        return value;
+    }
+
+    synchronized V remove(K key) {
+        V value = map.remove(key);
+        if (value != null) {
+            weight -= weigh(key, value);
+            removed(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Drop everything, e.g. because the entries are stale; not counted as evictions.
+     */
+    synchronized void clear() {
+        if (removalListener != null) {
+            for (Map.Entry<K, V> entry : map.entrySet()) {
+                removalListener.removed(entry.getKey(), entry.getValue());
+            }
+        }
+        map.clear();
+        weight = 0;
+    }
+
+    synchronized void setRemovalListener(RemovalListener<? super K, ? super V> removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    private void removed(K key, V value) {
+        if (removalListener != null) {
+            removalListener.removed(key, value);
+        }
+    }
+
+    private long weigh(K key, V value) {
+        return weigher == null ? 1 : weigher.weigh(key, value);
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must not be negative");
+        }
+        this.maxSize = maxSize;
+        if (map != null) {
+            trim();
+        }
+    }
+
+    /**
+     * @param maxWeight the most total weight to hold.
+     */
+    synchronized void setMaxWeight(long maxWeight) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("maxWeight must not be negative");
+        }
+        this.maxWeight = maxWeight;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+        while ((map.size() > maxSize || weight > maxWeight) && iterator.hasNext()) {
+            Map.Entry<K, V> eldest = iterator.next();
+            weight -= weigh(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+            evictions++;
+            removed(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    synchronized long getMaxWeight() {
+        return maxWeight;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+}
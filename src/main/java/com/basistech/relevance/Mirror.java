@@ -0,0 +1,62 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import java.io.File;
+
+/**
+ * Specification of a mirror: a repository that serves requests meant for others.
+ */
+public class Mirror {
+    private final String id;
+    private final String url;
+    private final String mirrorOf;
+
+    /**
+     * @param id the mirror's repository id.
+     * @param url its URL; file: URLs name a local directory laid out as a Maven repository.
+     * @param mirrorOf the repositories it stands in for, in Maven's syntax: '*', or a comma-separated
+     * list of ids, where '!id' excludes one.
+     */
+    public Mirror(String id, String url, String mirrorOf) {
+        this.id = id;
+        this.url = url;
+        this.mirrorOf = mirrorOf;
+    }
+
+    /**
+     * @return a mirror of every repository from a local directory.
+     */
+    public static Mirror local(File directory) {
+        return new Mirror("local", directory.getAbsoluteFile().toURI().toString(), "*");
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getMirrorOf() {
+        return mirrorOf;
+    }
+
+    @Override
+    public String toString() {
+        return id + " " + url + " " + mirrorOf;
+    }
+}
@@ -0,0 +1,59 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+/**
+ * The token output formats that Driver can write.
+ */
+enum OutputFormat {
+    TEXT(".tokens") {
+        @Override
+        TokenSink open(File file, int fields) throws IOException {
+            return new TextTokenSink(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8), Inputs.BUFFER_SIZE), fields);
+        }
+    },
+    BINARY(".btk") {
+        @Override
+        TokenSink open(File file, int fields) throws IOException {
+            return new BinaryTokenWriter(new FileOutputStream(file).getChannel(), fields);
+        }
+    };
+
+    private final String suffix;
+
+    OutputFormat(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * @return the file name suffix used when Driver names output files itself.
+     */
+    String suffix() {
+        return suffix;
+    }
+
+    /**
+     * @param fields the optional {@link TokenSink} fields to write.
+     */
+    abstract TokenSink open(File file, int fields) throws IOException;
+}
@@ -0,0 +1,90 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranking measures over graded judgments. A grade above zero is relevant; nDCG uses the
+ * grade as the gain, discounted by log2 of the rank plus one.
+ */
+final class RankingMetrics {
+    private RankingMetrics() {
+        //
+    }
+
+    static double averagePrecision(List<String> ranked, Map<String, Integer> judgments) {
+        int relevant = 0;
+        for (Integer grade : judgments.values()) {
+            if (grade > 0) {
+                relevant++;
+            }
+        }
+        if (relevant == 0) {
+            return 0;
+        }
+        int found = 0;
+        double sum = 0;
+        for (int x = 0; x < ranked.size(); x++) {
+            if (isRelevant(ranked.get(x), judgments)) {
+                found++;
+                sum += (double) found / (x + 1);
+            }
+        }
+        return sum / relevant;
+    }
+
+    static double precisionAt(int k, List<String> ranked, Map<String, Integer> judgments) {
+        int found = 0;
+        for (int x = 0; x < k && x < ranked.size(); x++) {
+            if (isRelevant(ranked.get(x), judgments)) {
+                found++;
+            }
+        }
+        return (double) found / k;
+    }
+
+    static double ndcgAt(int k, List<String> ranked, Map<String, Integer> judgments) {
+        double dcg = 0;
+        for (int x = 0; x < k && x < ranked.size(); x++) {
+            Integer grade = judgments.get(ranked.get(x));
+            if (grade != null && grade > 0) {
+                dcg += grade / log2(x + 2);
+            }
+        }
+        int[] grades = new int[judgments.size()];
+        int g = 0;
+        for (Integer grade : judgments.values()) {
+            grades[g++] = grade;
+        }
+        Arrays.sort(grades);
+        double ideal = 0;
+        for (int x = 0; x < k && x < grades.length && grades[grades.length - 1 - x] > 0; x++) {
+            ideal += grades[grades.length - 1 - x] / log2(x + 2);
+        }
+        return ideal == 0 ? 0 : dcg / ideal;
+    }
+
+    private static boolean isRelevant(String doc, Map<String, Integer> judgments) {
+        Integer grade = judgments.get(doc);
+        return grade != null && grade > 0;
+    }
+
+    private static double log2(int x) {
+        return Math.log(x) / Math.log(2);
+    }
+}
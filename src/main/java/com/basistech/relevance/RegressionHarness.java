@@ -0,0 +1,421 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.AbstractAnalysisFactory;
+
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares two builds of one chain, typically the same chain over two versions of its artifacts,
+ * to gate an upgrade. Both run over the same corpus, held in memory, on one thread: first some
+ * warmup rounds, then measured rounds in alternating order, so that neither side always gets the
+ * warmer cache. The report gives tokens per second and bytes allocated per token for each, and
+ * the documents whose tokens differ; the candidate fails if it is slower, or allocates more, than
+ * the thresholds allow, or changes too many documents.
+ * <p>
+ * Allocation is measured with HotSpot's per-thread allocation counter, where there is one.
+ * If every factory in the chain comes from the same jar on both sides, as it would if both
+ * lists resolve to the same versions of what the chain uses, there is nothing to gate, and the
+ * harness stops with a usage error rather than pass.
+ */
+public final class RegressionHarness {
+    private static final String FIELD = "body";
+    private static final int EXAMPLE_DIFFS = 10;
+    private static final Method ALLOCATED_BYTES = allocatedBytesMethod();
+
+    private final Analyzer baseline;
+    private final Analyzer candidate;
+    private int warmupRounds = 3;
+    private int rounds = 5;
+    private double maxSlowdown = 0.10;
+    private double maxAllocationGrowth = 0.25;
+    private int maxChangedDocuments;
+
+    public RegressionHarness(Analyzer baseline, Analyzer candidate) {
+        this.baseline = baseline;
+        this.candidate = candidate;
+    }
+
+    /**
+     * One side's totals over the measured rounds.
+     */
+    static final class Measurement {
+        long tokens;
+        long nanos;
+        // -1 if the JVM cannot count.
+        long allocatedBytes;
+
+        double tokensPerSecond() {
+            return nanos == 0 ? 0 : tokens * 1e9 / nanos;
+        }
+
+        double bytesPerToken() {
+            return allocatedBytes < 0 || tokens == 0 ? -1 : (double) allocatedBytes / tokens;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options();
+        int argx = 0;
+        while (argx < args.length && args[argx].startsWith("--")) {
+            String arg = args[argx];
+            if ("--offline".equals(arg)) {
+                options.offline = true;
+                argx++;
+                continue;
+            }
+            if (argx == args.length - 1) {
+                usage();
+                System.exit(2);
+            }
+            if ("--warmup".equals(arg)) {
+                options.warmupRounds = Integer.parseInt(args[++argx]);
+            } else if ("--rounds".equals(arg)) {
+                options.rounds = Integer.parseInt(args[++argx]);
+            } else if ("--max-slowdown".equals(arg)) {
+                options.maxSlowdown = Double.parseDouble(args[++argx]) / 100;
+            } else if ("--max-alloc-growth".equals(arg)) {
+                options.maxAllocationGrowth = Double.parseDouble(args[++argx]) / 100;
+            } else if ("--max-changed-docs".equals(arg)) {
+                options.maxChangedDocuments = Integer.parseInt(args[++argx]);
+            } else if ("--mirror".equals(arg)) {
+                options.mirror = new File(args[++argx]);
+            } else {
+                usage();
+                System.exit(2);
+            }
+            argx++;
+        }
+        if (args.length - argx < 3) {
+            usage();
+            System.exit(2);
+        }
+        String corpus = args[argx++];
+        List<String> baselineArtifacts = Arrays.asList(args[argx++].split(","));
+        List<String> candidateArtifacts = Arrays.asList(args[argx++].split(","));
+        ChainSpec chainSpec;
+        try {
+            chainSpec = ChainSpec.parse(Arrays.asList(args).subList(argx, args.length));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+            return;
+        }
+
+        AnalyzerFactory baselineFactory = newFactory(baselineArtifacts, options);
+        AnalyzerFactory candidateFactory = newFactory(candidateArtifacts, options);
+        List<AbstractAnalysisFactory> baselineFactories = baselineFactory.factoryChain(chainSpec).getFactories();
+        List<AbstractAnalysisFactory> candidateFactories = candidateFactory.factoryChain(chainSpec).getFactories();
+        if (!anyDifferent(baselineFactories, candidateFactories)) {
+            System.err.println("Baseline and candidate run the same factory classes, so there is nothing to compare:");
+            for (AbstractAnalysisFactory factory : baselineFactories) {
+                System.err.println("  " + factory.getClass().getName() + " from " + codeSource(factory.getClass()));
+            }
+            System.exit(2);
+            return;
+        }
+        RegressionHarness harness = new RegressionHarness(baselineFactory.newAnalyzer(chainSpec), candidateFactory.newAnalyzer(chainSpec));
+        harness.setWarmupRounds(options.warmupRounds);
+        harness.setRounds(options.rounds);
+        harness.setMaxSlowdown(options.maxSlowdown);
+        harness.setMaxAllocationGrowth(options.maxAllocationGrowth);
+        harness.setMaxChangedDocuments(options.maxChangedDocuments);
+        boolean passed = harness.compare(corpus, System.out);
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return whether any factory in the chain comes from a different jar on the candidate side;
+     * a class from the application's own class path is the same on both.
+     */
+    private static boolean anyDifferent(List<AbstractAnalysisFactory> baseline, List<AbstractAnalysisFactory> candidate) {
+        ClassLoader application = RegressionHarness.class.getClassLoader();
+        for (int i = 0; i < baseline.size(); i++) {
+            Class<?> baselineClass = baseline.get(i).getClass();
+            Class<?> candidateClass = candidate.get(i).getClass();
+            if (baselineClass.getClassLoader() == application && candidateClass.getClassLoader() == application) {
+                continue;
+            }
+            if (!Objects.equal(codeSource(baselineClass), codeSource(candidateClass))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static URL codeSource(Class<?> clazz) {
+        CodeSource source = clazz.getProtectionDomain().getCodeSource();
+        return source == null ? null : source.getLocation();
+    }
+
+    private static AnalyzerFactory newFactory(List<String> artifacts, Options options) {
+        AnalyzerFactory factory = new AnalyzerFactory();
+        factory.setArtifacts(artifacts);
+        factory.setOffline(options.offline);
+        if (options.mirror != null) {
+            factory.setMirrors(Lists.newArrayList(Mirror.local(options.mirror)));
+        }
+        factory.initialize();
+        return factory;
+    }
+
+    private static final class Options {
+        boolean offline;
+        File mirror;
+        int warmupRounds = 3;
+        int rounds = 5;
+        double maxSlowdown = 0.10;
+        double maxAllocationGrowth = 0.25;
+        int maxChangedDocuments;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: RegressionHarness [options] corpus baselineArtifacts candidateArtifacts -tokenizer ... [-charfilter ...] [-tokenfilter ...]");
+        System.err.println("The corpus is a directory, a file-name glob or @manifest, as for Driver --batch; the artifact");
+        System.err.println("lists are comma-separated group:artifact:version. Exit status: 0 pass, 1 fail, 2 usage,");
+        System.err.println("or both sides run the same factory classes.");
+        System.err.println("Options:");
+        System.err.println("  --offline         resolve from the local repository only");
+        System.err.println("  --mirror dir      resolve everything from a directory laid out as a Maven repository");
+        System.err.println("  --warmup n        unmeasured rounds over the corpus (default 3)");
+        System.err.println("  --rounds n        measured rounds (default 5)");
+        System.err.println("  --max-slowdown p  fail if the candidate's tokens/sec is more than p% lower (default 10)");
+        System.err.println("  --max-alloc-growth p  fail if the candidate allocates more than p% more per token (default 25)");
+        System.err.println("  --max-changed-docs n  fail if more than n documents' tokens differ (default 0)");
+    }
+
+    /**
+     * Run the comparison and print a report.
+     * @param corpus a directory, a file-name glob or {@code @manifest}, as for a batch.
+     * @return true if the candidate is within every threshold.
+     */
+    public boolean compare(String corpus, PrintStream out) throws IOException {
+        return compare(BatchProcessor.listInputs(corpus), out);
+    }
+
+    boolean compare(List<BatchProcessor.Input> inputs, PrintStream out) throws IOException {
+        List<char[]> documents = Lists.newArrayList();
+        long chars = 0;
+        for (BatchProcessor.Input input : inputs) {
+            Reader reader = Inputs.openReader(input.file);
+            try {
+                char[] text = ChainComparison.readFully(reader);
+                documents.add(text);
+                chars += text.length;
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+        }
+        out.println(String.format("corpus: %d documents, %d chars", documents.size(), chars));
+
+        for (int r = 0; r < warmupRounds; r++) {
+            run(baseline, documents, new Measurement());
+            run(candidate, documents, new Measurement());
+        }
+        Measurement baselineTotals = new Measurement();
+        Measurement candidateTotals = new Measurement();
+        for (int r = 0; r < rounds; r++) {
+            if (r % 2 == 0) {
+                run(baseline, documents, baselineTotals);
+                run(candidate, documents, candidateTotals);
+            } else {
+                run(candidate, documents, candidateTotals);
+                run(baseline, documents, baselineTotals);
+            }
+        }
+        int changed = diff(inputs, documents, out);
+
+        out.println(String.format("%-10s %14s %14s %14s", "", "tokens/sec", "bytes/token", "tokens/round"));
+        print(out, "baseline", baselineTotals);
+        print(out, "candidate", candidateTotals);
+
+        boolean passed = true;
+        double speed = baselineTotals.tokensPerSecond() == 0 ? 1 : candidateTotals.tokensPerSecond() / baselineTotals.tokensPerSecond();
+        out.println(String.format("throughput: candidate at %.1f%% of baseline (floor %.1f%%)", 100 * speed, 100 * (1 - maxSlowdown)));
+        if (speed < 1 - maxSlowdown) {
+            out.println("FAIL: throughput");
+            passed = false;
+        }
+        if (baselineTotals.bytesPerToken() > 0 && candidateTotals.bytesPerToken() >= 0) {
+            double growth = candidateTotals.bytesPerToken() / baselineTotals.bytesPerToken();
+            out.println(String.format("allocation: candidate at %.1f%% of baseline (ceiling %.1f%%)", 100 * growth, 100 * (1 + maxAllocationGrowth)));
+            if (growth > 1 + maxAllocationGrowth) {
+                out.println("FAIL: allocation");
+                passed = false;
+            }
+        } else {
+            out.println("allocation: not measured on this JVM");
+        }
+        out.println(String.format("output: %d of %d documents differ (at most %d allowed)", changed, documents.size(), maxChangedDocuments));
+        if (changed > maxChangedDocuments) {
+            out.println("FAIL: output");
+            passed = false;
+        }
+        out.println(passed ? "PASS" : "FAIL");
+        return passed;
+    }
+
+    private void print(PrintStream out, String label, Measurement measurement) {
+        out.println(String.format("%-10s %14.0f %14.3f %14d", label, measurement.tokensPerSecond(), measurement.bytesPerToken(),
+                rounds == 0 ? 0 : measurement.tokens / rounds));
+    }
+
+    private static void run(Analyzer analyzer, List<char[]> documents, Measurement totals) throws IOException {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long tokens = 0;
+        for (char[] document : documents) {
+            TokenStream stream = analyzer.tokenStream(FIELD, new CharArrayReader(document));
+            try {
+                stream.reset();
+                while (stream.incrementToken()) {
+                    tokens++;
+                }
+                stream.end();
+            } finally {
+                stream.close();
+            }
+        }
+        totals.nanos += System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        totals.tokens += tokens;
+        if (allocatedBefore < 0 || allocatedAfter < 0 || totals.allocatedBytes < 0) {
+            totals.allocatedBytes = -1;
+        } else {
+            totals.allocatedBytes += allocatedAfter - allocatedBefore;
+        }
+    }
+
+    /**
+     * Compare the two sides' tokens, document by document, and print the first few differences.
+     * @return the number of documents that differ.
+     */
+    private int diff(List<BatchProcessor.Input> inputs, List<char[]> documents, PrintStream out) throws IOException {
+        int changed = 0;
+        for (int d = 0; d < documents.size(); d++) {
+            String text = new String(documents.get(d));
+            TokenBatch expected = TokenBatch.analyze(baseline, FIELD, text);
+            TokenBatch actual = TokenBatch.analyze(candidate, FIELD, text);
+            int at = firstDifference(expected, actual);
+            if (at >= 0) {
+                if (changed < EXAMPLE_DIFFS) {
+                    out.println(String.format("differs: %s at token %d: baseline %s, candidate %s", inputs.get(d).name, at,
+                            describe(expected, at), describe(actual, at)));
+                }
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static int firstDifference(TokenBatch a, TokenBatch b) {
+        int common = Math.min(a.size(), b.size());
+        for (int x = 0; x < common; x++) {
+            if (!a.term(x).equals(b.term(x)) || !a.type(x).equals(b.type(x)) || a.startOffset(x) != b.startOffset(x)
+                    || a.endOffset(x) != b.endOffset(x) || a.positionIncrement(x) != b.positionIncrement(x)) {
+                return x;
+            }
+        }
+        return a.size() == b.size() ? -1 : common;
+    }
+
+    private static String describe(TokenBatch batch, int index) {
+        if (index >= batch.size()) {
+            return "(end, " + batch.size() + " tokens)";
+        }
+        return String.format("'%s' %s [%d,%d) +%d", batch.term(index), batch.type(index), batch.startOffset(index),
+                batch.endOffset(index), batch.positionIncrement(index));
+    }
+
+    /**
+     * @return the bytes allocated so far by this thread, or -1 if the JVM does not say.
+     */
+    private static long allocatedBytes() {
+        if (ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        try {
+            return (Long) ALLOCATED_BYTES.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+        } catch (IllegalAccessException e) {
+            return -1;
+        } catch (InvocationTargetException e) {
+            return -1;
+        }
+    }
+
+    // HotSpot's extension of ThreadMXBean, looked up by name so that other JVMs still run.
+    private static Method allocatedBytesMethod() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            Class<?> sunThreads = Class.forName("com.sun.management.ThreadMXBean");
+            if (!sunThreads.isInstance(threads)) {
+                return null;
+            }
+            return sunThreads.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public void setWarmupRounds(int warmupRounds) {
+        this.warmupRounds = warmupRounds;
+    }
+
+    public void setRounds(int rounds) {
+        if (rounds < 1) {
+            throw new IllegalArgumentException("rounds must be positive");
+        }
+        this.rounds = rounds;
+    }
+
+    /**
+     * @param maxSlowdown the largest acceptable drop in throughput, as a fraction of the baseline's.
+     */
+    public void setMaxSlowdown(double maxSlowdown) {
+        this.maxSlowdown = maxSlowdown;
+    }
+
+    /**
+     * @param maxAllocationGrowth the largest acceptable rise in bytes allocated per token, as a fraction of the baseline's.
+     */
+    public void setMaxAllocationGrowth(double maxAllocationGrowth) {
+        this.maxAllocationGrowth = maxAllocationGrowth;
+    }
+
+    public void setMaxChangedDocuments(int maxChangedDocuments) {
+        this.maxChangedDocuments = maxChangedDocuments;
+    }
+}
@@ -0,0 +1,371 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.benchmark.quality.QualityQuery;
+import org.apache.lucene.benchmark.quality.trec.TrecTopicsReader;
+import org.apache.lucene.benchmark.quality.utils.SimpleQQParser;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relevance measurement end to end: index a TREC-style corpus with an analysis chain, run the
+ * topics through {@link SimpleQQParser} on a thread pool against one shared
+ * {@link IndexSearcher}, and score the rankings against qrels. Reports MAP, P@k and nDCG@k,
+ * each query's latency, and overall queries per second.
+ */
+public final class RelevanceEvaluator {
+    private static final Logger LOG = LoggerFactory.getLogger(RelevanceEvaluator.class);
+    private static final int[] PRECISION_CUTOFFS = {5, 10, 20};
+    private static final int NDCG_CUTOFF = 10;
+    private static final Set<String> NAME_ONLY = Collections.singleton(CorpusIndexer.NAME_FIELD);
+
+    private final Analyzer analyzer;
+    private final CorpusIndexer indexer;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxResults = 1000;
+    private String[] topicFields = {"title"};
+    private File indexDirectory;
+    private long searchNanos;
+
+    /**
+     * @param analyzer the chain to index and query with.
+     * @param chainFingerprint identifies the chain, so that an index on disk can be reused.
+     */
+    public RelevanceEvaluator(Analyzer analyzer, String chainFingerprint) {
+        this.analyzer = analyzer;
+        indexer = new CorpusIndexer(analyzer, chainFingerprint);
+    }
+
+    /**
+     * The outcome of one topic.
+     */
+    static final class QueryResult {
+        final String id;
+        final long latencyNanos;
+        final double averagePrecision;
+        final double[] precision;
+        final double ndcg;
+
+        QueryResult(String id, long latencyNanos, List<String> ranked, Map<String, Integer> judgments) {
+            this.id = id;
+            this.latencyNanos = latencyNanos;
+            averagePrecision = RankingMetrics.averagePrecision(ranked, judgments);
+            precision = new double[PRECISION_CUTOFFS.length];
+            for (int x = 0; x < PRECISION_CUTOFFS.length; x++) {
+                precision[x] = RankingMetrics.precisionAt(PRECISION_CUTOFFS[x], ranked, judgments);
+            }
+            ndcg = RankingMetrics.ndcgAt(NDCG_CUTOFF, ranked, judgments);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options();
+        int argx = 0;
+        while (argx < args.length && args[argx].startsWith("--")) {
+            String arg = args[argx];
+            if (argx == args.length - 1) {
+                usage();
+                System.exit(1);
+            }
+            if ("--threads".equals(arg)) {
+                options.threads = Integer.parseInt(args[++argx]);
+            } else if ("--index-threads".equals(arg)) {
+                options.indexThreads = Integer.parseInt(args[++argx]);
+            } else if ("--index".equals(arg)) {
+                options.index = new File(args[++argx]);
+            } else if ("--fields".equals(arg)) {
+                options.fields = args[++argx].split(",");
+            } else if ("--max-results".equals(arg)) {
+                options.maxResults = Integer.parseInt(args[++argx]);
+            } else if ("--lock".equals(arg)) {
+                options.lock = new File(args[++argx]);
+            } else {
+                usage();
+                System.exit(1);
+            }
+            argx++;
+        }
+        if (args.length - argx < 3) {
+            usage();
+            System.exit(1);
+        }
+        File docs = new File(args[argx++]);
+        File topics = new File(args[argx++]);
+        File qrels = new File(args[argx++]);
+        List<String> artifacts = Lists.newArrayList();
+        while (argx < args.length && !args[argx].startsWith("-")) {
+            artifacts.add(args[argx++]);
+        }
+        ChainSpec chainSpec;
+        try {
+            chainSpec = ChainSpec.parse(Arrays.asList(args).subList(argx, args.length));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(1);
+            return;
+        }
+
+        AnalyzerFactory analyzerFactory = new AnalyzerFactory();
+        analyzerFactory.setArtifacts(artifacts);
+        analyzerFactory.setClasspathLockFile(options.lock);
+        analyzerFactory.initialize();
+        RelevanceEvaluator evaluator = new RelevanceEvaluator(analyzerFactory.newAnalyzer(chainSpec), analyzerFactory.chainFingerprint(chainSpec));
+        evaluator.setThreads(options.threads);
+        evaluator.getIndexer().setThreads(options.indexThreads);
+        evaluator.setTopicFields(options.fields);
+        evaluator.setMaxResults(options.maxResults);
+        evaluator.setIndexDirectory(options.index);
+        evaluator.evaluate(docs, topics, qrels, System.out);
+    }
+
+    private static final class Options {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int indexThreads = Runtime.getRuntime().availableProcessors();
+        File index;
+        String[] fields = {"title"};
+        int maxResults = 1000;
+        File lock;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: RelevanceEvaluator [options] docsDir topicsFile qrelsFile group:artifact:version ... -tokenizer ... [-charfilter ...] [-tokenfilter ...]");
+        System.err.println("Options:");
+        System.err.println("  --threads n       search threads (default: one per core)");
+        System.err.println("  --index-threads n indexing threads (default: one per core)");
+        System.err.println("  --index dir       build the index on disk here, or reuse it, rather than in memory");
+        System.err.println("  --fields list     topic fields to query with (default: title)");
+        System.err.println("  --max-results n   depth of each ranking (default 1000)");
+        System.err.println("  --lock lockFile   record the resolved classpath, and reuse it when nothing has changed");
+    }
+
+    /**
+     * Index, search and score, and print a report.
+     */
+    public void evaluate(File docs, File topicsFile, File qrelsFile, PrintStream out) throws IOException {
+        indexer.setDirectoryType(indexDirectory == null ? CorpusIndexer.DirectoryType.RAM : CorpusIndexer.DirectoryType.MMAP);
+        Directory directory = indexer.index(docs, indexDirectory);
+        try {
+            QualityQuery[] topics = readTopics(topicsFile);
+            Map<String, Map<String, Integer>> qrels = readQrels(qrelsFile);
+            DirectoryReader reader = DirectoryReader.open(directory);
+            try {
+                report(search(new IndexSearcher(reader), topics, qrels), out);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            directory.close();
+        }
+    }
+
+    private static QualityQuery[] readTopics(File topicsFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(topicsFile), Charsets.UTF_8));
+        try {
+            return new TrecTopicsReader().readQueries(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read TREC qrels, {@code topic iteration docno grade} per line.
+     * @return grades by document name, by topic.
+     */
+    static Map<String, Map<String, Integer>> readQrels(File qrelsFile) throws IOException {
+        Map<String, Map<String, Integer>> qrels = Maps.newHashMap();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(qrelsFile), Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 4) {
+                    continue;
+                }
+                Map<String, Integer> judgments = qrels.get(fields[0]);
+                if (judgments == null) {
+                    judgments = Maps.newHashMap();
+                    qrels.put(fields[0], judgments);
+                }
+                judgments.put(fields[2], Integer.valueOf(fields[3]));
+            }
+        } finally {
+            reader.close();
+        }
+        return qrels;
+    }
+
+    private List<QueryResult> search(final IndexSearcher searcher, QualityQuery[] topics, final Map<String, Map<String, Integer>> qrels) throws IOException {
+        // one parser for all threads; it analyzes each topic directly, and its cache is synchronized.
+        final SimpleQQParser parser = new SimpleQQParser(topicFields, CorpusIndexer.BODY_FIELD, analyzer);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<QueryResult>> futures = Lists.newArrayList();
+        long start = System.nanoTime();
+        try {
+            for (final QualityQuery topic : topics) {
+                futures.add(executor.submit(new Callable<QueryResult>() {
+                    @Override
+                    public QueryResult call() throws Exception {
+                        long queryStart = System.nanoTime();
+                        Query query = parser.parse(topic);
+                        TopDocs topDocs = searcher.search(query, maxResults);
+                        List<String> ranked = Lists.newArrayListWithCapacity(topDocs.scoreDocs.length);
+                        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                            ranked.add(searcher.doc(scoreDoc.doc, NAME_ONLY).get(CorpusIndexer.NAME_FIELD));
+                        }
+                        long latency = System.nanoTime() - queryStart;
+                        Map<String, Integer> judgments = qrels.get(topic.getQueryID());
+                        if (judgments == null) {
+                            judgments = Collections.emptyMap();
+                        }
+                        return new QueryResult(topic.getQueryID(), latency, ranked, judgments);
+                    }
+                }));
+            }
+            List<QueryResult> results = Lists.newArrayList();
+            for (Future<QueryResult> future : futures) {
+                results.add(future.get());
+            }
+            long elapsed = System.nanoTime() - start;
+            LOG.info("{} queries on {} threads in {}ms", new Object[] {topics.length, threads, TimeUnit.NANOSECONDS.toMillis(elapsed)});
+            searchNanos = elapsed;
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void report(List<QueryResult> results, PrintStream out) {
+        StringBuilder header = new StringBuilder(String.format("%-10s %10s %8s", "query", "ms", "AP"));
+        for (int cutoff : PRECISION_CUTOFFS) {
+            header.append(String.format(" %8s", "P@" + cutoff));
+        }
+        header.append(String.format(" %8s", "nDCG@" + NDCG_CUTOFF));
+        out.println(header);
+
+        double map = 0;
+        double[] precision = new double[PRECISION_CUTOFFS.length];
+        double ndcg = 0;
+        long[] latencies = new long[results.size()];
+        int r = 0;
+        for (QueryResult result : results) {
+            StringBuilder line = new StringBuilder(String.format("%-10s %10.2f %8.4f", result.id, result.latencyNanos / 1e6, result.averagePrecision));
+            for (int x = 0; x < precision.length; x++) {
+                line.append(String.format(" %8.4f", result.precision[x]));
+                precision[x] += result.precision[x];
+            }
+            line.append(String.format(" %8.4f", result.ndcg));
+            out.println(line);
+            map += result.averagePrecision;
+            ndcg += result.ndcg;
+            latencies[r++] = result.latencyNanos;
+        }
+        if (results.isEmpty()) {
+            out.println("No topics.");
+            return;
+        }
+
+        int n = results.size();
+        StringBuilder summary = new StringBuilder(String.format("%-10s %10s %8.4f", "all", "", map / n));
+        for (double p : precision) {
+            summary.append(String.format(" %8.4f", p / n));
+        }
+        summary.append(String.format(" %8.4f", ndcg / n));
+        out.println(summary);
+        Arrays.sort(latencies);
+        out.println(String.format("latency ms: median %.2f, p95 %.2f, max %.2f", latencies[n / 2] / 1e6,
+                latencies[Math.min(n - 1, (int) Math.ceil(n * 0.95) - 1)] / 1e6, latencies[n - 1] / 1e6));
+        out.println(String.format("%.1f queries/sec on %d threads", n / (searchNanos / 1e9), threads));
+    }
+
+    /**
+     * @return the indexer, for its settings.
+     */
+    public CorpusIndexer getIndexer() {
+        return indexer;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public void setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    public String[] getTopicFields() {
+        return topicFields;
+    }
+
+    /**
+     * @param topicFields the topic fields whose text makes up each query, such as title or description.
+     */
+    public void setTopicFields(String[] topicFields) {
+        this.topicFields = topicFields;
+    }
+
+    public File getIndexDirectory() {
+        return indexDirectory;
+    }
+
+    /**
+     * @param indexDirectory where to build the index; null for memory.
+     */
+    public void setIndexDirectory(File indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+}
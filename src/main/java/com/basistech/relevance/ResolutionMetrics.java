@@ -0,0 +1,310 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.eclipse.aether.AbstractRepositoryListener;
+import org.eclipse.aether.RepositoryEvent;
+import org.eclipse.aether.RepositoryListener;
+import org.eclipse.aether.repository.ArtifactRepository;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.transfer.AbstractTransferListener;
+import org.eclipse.aether.transfer.TransferEvent;
+import org.eclipse.aether.transfer.TransferListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time goes when {@link AnalyzerFactory#initialize()} runs: the time of each phase, and
+ * for each artifact Aether resolves, whether it came from the local repository or was downloaded,
+ * its size and how long it took. Aether reports artifacts and transfers from its own threads,
+ * through the listeners here.
+ */
+public final class ResolutionMetrics implements ResolutionMetricsMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ResolutionMetrics.class);
+    private static final String DOMAIN = "com.basistech.relevance";
+
+    /**
+     * The phases of initialization, in order. A phase that does not run, such as resolution when
+     * the classpath lock is current, takes no time.
+     */
+    public enum Phase {
+        /** reading the classpath lock. */
+        LOCK,
+        /** starting up Aether: the repository system and session. */
+        SETUP,
+        /** building the dependency graph, fetching poms. */
+        COLLECT,
+        /** fetching the jars. */
+        RESOLVE,
+        /** creating the class loader for the jars. */
+        CLASS_LOADER,
+        /** building the SPI lookups from the jars' service indexes. */
+        SPI
+    }
+
+    private final AtomicLongArray phaseMillis = new AtomicLongArray(Phase.values().length);
+    private final AtomicLong initializeMillis = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final AtomicLong failedTransfers = new AtomicLong();
+    private final ConcurrentMap<String, Long> resolvingSince = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, ArtifactRecord> artifacts = Maps.newConcurrentMap();
+    private ObjectName objectName;
+
+    /**
+     * What became of one artifact.
+     */
+    static final class ArtifactRecord {
+        final String coordinates;
+        final boolean downloaded;
+        final String repository;
+        final long bytes;
+        final long millis;
+
+        ArtifactRecord(String coordinates, boolean downloaded, String repository, long bytes, long millis) {
+            this.coordinates = coordinates;
+            this.downloaded = downloaded;
+            this.repository = repository;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * Clear everything, ready for another initialization.
+     */
+    void reset() {
+        for (int x = 0; x < phaseMillis.length(); x++) {
+            phaseMillis.set(x, 0);
+        }
+        initializeMillis.set(0);
+        cacheHits.set(0);
+        downloads.set(0);
+        downloadedBytes.set(0);
+        transferredBytes.set(0);
+        failedTransfers.set(0);
+        resolvingSince.clear();
+        artifacts.clear();
+    }
+
+    void phase(Phase phase, long millis) {
+        phaseMillis.set(phase.ordinal(), millis);
+    }
+
+    void initialized(long millis) {
+        initializeMillis.set(millis);
+    }
+
+    RepositoryListener newRepositoryListener() {
+        return new AbstractRepositoryListener() {
+            @Override
+            public void artifactResolving(RepositoryEvent event) {
+                resolvingSince.put(event.getArtifact().toString(), System.currentTimeMillis());
+            }
+
+            @Override
+            public void artifactResolved(RepositoryEvent event) {
+                String coordinates = event.getArtifact().toString();
+                Long since = resolvingSince.remove(coordinates);
+                long millis = since == null ? 0 : System.currentTimeMillis() - since;
+                File file = event.getFile();
+                if (file == null) {
+                    // not found; the failure surfaces from the resolution itself.
+                    return;
+                }
+                ArtifactRepository repository = event.getRepository();
+                boolean downloaded = repository instanceof RemoteRepository;
+                long bytes = file.length();
+                String repositoryId = repository == null ? "" : repository.getId();
+                // poms are resolved again for each dependency that inherits from them; count the first.
+                if (artifacts.putIfAbsent(coordinates, new ArtifactRecord(coordinates, downloaded, repositoryId, bytes, millis)) == null) {
+                    if (downloaded) {
+                        downloads.incrementAndGet();
+                        downloadedBytes.addAndGet(bytes);
+                    } else {
+                        cacheHits.incrementAndGet();
+                    }
+                }
+            }
+        };
+    }
+
+    TransferListener newTransferListener() {
+        return new AbstractTransferListener() {
+            @Override
+            public void transferSucceeded(TransferEvent event) {
+                transferredBytes.addAndGet(event.getTransferredBytes());
+            }
+
+            @Override
+            public void transferFailed(TransferEvent event) {
+                failedTransfers.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Register with the platform MBean server; failure is logged, not fatal.
+     */
+    synchronized void register(String id) {
+        try {
+            objectName = new ObjectName(DOMAIN + ":type=ResolutionMetrics,name=" + ObjectName.quote(id));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOG.warn("Failed to register resolution metrics for {}", id, e);
+            objectName = null;
+        }
+    }
+
+    synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOG.debug("Failed to unregister {}", objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String[] getPhaseNames() {
+        Phase[] phases = Phase.values();
+        String[] names = new String[phases.length];
+        for (int x = 0; x < phases.length; x++) {
+            names[x] = phaseName(phases[x]);
+        }
+        return names;
+    }
+
+    @Override
+    public long[] getPhaseMillis() {
+        long[] values = new long[phaseMillis.length()];
+        for (int x = 0; x < values.length; x++) {
+            values[x] = phaseMillis.get(x);
+        }
+        return values;
+    }
+
+    public long getPhaseMillis(Phase phase) {
+        return phaseMillis.get(phase.ordinal());
+    }
+
+    @Override
+    public long getInitializeMillis() {
+        return initializeMillis.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    @Override
+    public long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    @Override
+    public long getFailedTransfers() {
+        return failedTransfers.get();
+    }
+
+    @Override
+    public String[] getArtifacts() {
+        List<String> lines = Lists.newArrayList();
+        for (ArtifactRecord record : artifactRecords()) {
+            lines.add(String.format("%s %s %d bytes %d ms", record.coordinates,
+                    record.downloaded ? "downloaded from " + record.repository : "local", record.bytes, record.millis));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    private List<ArtifactRecord> artifactRecords() {
+        Map<String, ArtifactRecord> sorted = Maps.newTreeMap();
+        sorted.putAll(artifacts);
+        return Lists.newArrayList(sorted.values());
+    }
+
+    @Override
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("initialize: %d ms%n", initializeMillis.get()));
+        for (Phase phase : Phase.values()) {
+            sb.append(String.format("  %-14s %8d ms%n", phaseName(phase), phaseMillis.get(phase.ordinal())));
+        }
+        sb.append(String.format("artifacts: %d local, %d downloaded (%d bytes), %d bytes transferred, %d failed transfers%n",
+                cacheHits.get(), downloads.get(), downloadedBytes.get(), transferredBytes.get(), failedTransfers.get()));
+        return sb.toString();
+    }
+
+    /**
+     * Write the metrics as tab-separated records, one per line, for tools to read: a
+     * {@code phase} line per phase with its milliseconds, a {@code total} line for the whole
+     * initialization, a {@code counter} line per count, and an {@code artifact} line per artifact
+     * with its coordinates, {@code local} or {@code download}, repository id, bytes and milliseconds.
+     */
+    public void report(PrintWriter out) {
+        for (Phase phase : Phase.values()) {
+            out.printf("phase\t%s\t%d%n", phaseName(phase), phaseMillis.get(phase.ordinal()));
+        }
+        out.printf("total\tinitialize\t%d%n", initializeMillis.get());
+        out.printf("counter\tcache-hits\t%d%n", cacheHits.get());
+        out.printf("counter\tdownloads\t%d%n", downloads.get());
+        out.printf("counter\tdownloaded-bytes\t%d%n", downloadedBytes.get());
+        out.printf("counter\ttransferred-bytes\t%d%n", transferredBytes.get());
+        out.printf("counter\tfailed-transfers\t%d%n", failedTransfers.get());
+        for (ArtifactRecord record : artifactRecords()) {
+            out.printf("artifact\t%s\t%s\t%s\t%d\t%d%n", record.coordinates, record.downloaded ? "download" : "local",
+                    record.repository, record.bytes, record.millis);
+        }
+        out.flush();
+    }
+
+    private static String phaseName(Phase phase) {
+        return phase.name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+}
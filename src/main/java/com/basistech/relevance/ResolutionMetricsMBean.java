@@ -0,0 +1,55 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+/**
+ * JMX view of {@link ResolutionMetrics}. Phase arrays are indexed like {@link #getPhaseNames()}.
+ */
+public interface ResolutionMetricsMBean {
+    String[] getPhaseNames();
+
+    /**
+     * @return milliseconds spent in each phase of the last initialization.
+     */
+    long[] getPhaseMillis();
+
+    long getInitializeMillis();
+
+    /**
+     * @return artifacts, poms included, found in the local repository.
+     */
+    long getCacheHits();
+
+    /**
+     * @return artifacts, poms included, downloaded from a remote repository.
+     */
+    long getDownloads();
+
+    long getDownloadedBytes();
+
+    /**
+     * @return bytes moved by every successful transfer: artifacts, checksums and metadata.
+     */
+    long getTransferredBytes();
+
+    long getFailedTransfers();
+
+    /**
+     * @return one line per artifact: coordinates, source, bytes and milliseconds.
+     */
+    String[] getArtifacts();
+
+    String summary();
+}
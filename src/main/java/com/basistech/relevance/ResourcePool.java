@@ -0,0 +1,376 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.util.AbstractAnalysisFactory;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.analysis.util.ResourceLoaderAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Constructed factories, shared between chains. A factory that loads resources, such as a stop
+ * filter's word list or a synonym filter's map, holds them immutably once informed, so chains
+ * that ask for the same factory with the same options, over resources with the same content,
+ * can all use one instance and one copy of its resources. Entries are keyed by factory class,
+ * options and the SHA-1 of each resource the factory loaded, so an edited word list gets a new
+ * entry rather than a stale one. Each chain holding an entry counts as a reference; an entry
+ * goes when its last chain releases it.
+ *
+ * <p>One pool, {@link #shared()}, serves every {@link AnalyzerFactory} unless given another;
+ * the factory class in the key keeps different class loaders apart.
+ */
+public final class ResourcePool {
+    private static final Logger LOG = LoggerFactory.getLogger(ResourcePool.class);
+    private static final ResourcePool SHARED = new ResourcePool();
+
+    private final Map<Key, Entry> entries = Maps.newHashMap();
+    // the resources each factory class and options loaded when built, keyed without digests.
+    private final Map<Key, Set<String>> resourceNames = Maps.newHashMap();
+    private long loads;
+    private long shares;
+    private long evictions;
+    private long loadNanos;
+    private long loadNanosAvoided;
+    private long bytesShared;
+
+    /**
+     * A factory from the pool; give it back with {@link ResourcePool#release(Shared)}.
+     */
+    static final class Shared<S extends AbstractAnalysisFactory> {
+        private final Key key;
+        private final S factory;
+
+        private Shared(Key key, S factory) {
+            this.key = key;
+            this.factory = factory;
+        }
+
+        S get() {
+            return factory;
+        }
+    }
+
+    private static final class Key {
+        private final Class<?> factoryClass;
+        private final Map<String, String> options;
+        private final Map<String, String> resourceDigests;
+
+        Key(Class<?> factoryClass, Map<String, String> options, Map<String, String> resourceDigests) {
+            this.factoryClass = factoryClass;
+            this.options = options;
+            this.resourceDigests = resourceDigests;
+        }
+
+        Key withoutResources() {
+            return new Key(factoryClass, options, ImmutableMap.<String, String>of());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key that = (Key) o;
+            return factoryClass == that.factoryClass && options.equals(that.options) && resourceDigests.equals(that.resourceDigests);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * factoryClass.hashCode() + options.hashCode()) + resourceDigests.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return factoryClass.getName() + options;
+        }
+    }
+
+    private static final class Entry {
+        final AbstractAnalysisFactory factory;
+        final long loadNanos;
+        final long resourceBytes;
+        int references;
+
+        Entry(AbstractAnalysisFactory factory, long loadNanos, long resourceBytes) {
+            this.factory = factory;
+            this.loadNanos = loadNanos;
+            this.resourceBytes = resourceBytes;
+        }
+    }
+
+    /**
+     * @return the pool used by every {@link AnalyzerFactory} not given its own.
+     */
+    public static ResourcePool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Get a factory for a component: the pooled one if there is one for the same class, options
+     * and resource content, else a new one, constructed and informed with the given loader.
+     * The resources the factory loaded when it was first built are read again, to hash them, on
+     * every call; parsing them is what a hit saves.
+     */
+    <S extends AbstractAnalysisFactory> Shared<S> acquire(SpiLookup<S> lookup, ComponentSpec spec, ResourceLoader loader) {
+        Class<? extends S> factoryClass = lookup.lookupClass(spec.getName());
+        Key unloaded = new Key(factoryClass, ImmutableSortedMap.copyOf(spec.getOptions()), ImmutableMap.<String, String>of());
+        ReadAheadLoader readAhead = null;
+        Shared<S> shared;
+        if (ResourceLoaderAware.class.isAssignableFrom(factoryClass)) {
+            readAhead = new ReadAheadLoader(loader);
+            // until one has been built, there is nothing to share and no knowing what it reads.
+            Set<String> names = resourceNames(unloaded);
+            shared = names == null ? null : share(new Key(factoryClass, unloaded.options, readAhead.readResources(names)), factoryClass);
+        } else {
+            shared = share(unloaded, factoryClass);
+        }
+        if (shared != null) {
+            return shared;
+        }
+
+        long start = System.nanoTime();
+        // the factory constructors consume their argument maps, so each one gets a private copy.
+        S factory = lookup.newInstance(spec.getName(), new HashMap<String, String>(spec.getOptions()));
+        if (readAhead != null) {
+            try {
+                ((ResourceLoaderAware) factory).inform(readAhead);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to load the resources for " + spec, e);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        Key key = readAhead == null ? unloaded : new Key(factoryClass, unloaded.options, readAhead.digests());
+        synchronized (this) {
+            // another chain may have built the same factory meanwhile; theirs wins.
+            shared = share(key, factoryClass);
+            if (shared != null) {
+                return shared;
+            }
+            Entry entry = new Entry(factory, nanos, readAhead == null ? 0 : readAhead.bytesRead);
+            entry.references = 1;
+            entries.put(key, entry);
+            if (readAhead != null) {
+                resourceNames.put(unloaded, readAhead.names());
+            }
+            loads++;
+            loadNanos += nanos;
+        }
+        if (readAhead != null) {
+            LOG.debug("Loaded {} ({} resource bytes) in {}us", new Object[] {key, readAhead.bytesRead, TimeUnit.NANOSECONDS.toMicros(nanos)});
+        }
+        return new Shared<S>(key, factory);
+    }
+
+    private synchronized Set<String> resourceNames(Key unloaded) {
+        return resourceNames.get(unloaded);
+    }
+
+    private synchronized <S extends AbstractAnalysisFactory> Shared<S> share(Key key, Class<? extends S> factoryClass) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.references++;
+        shares++;
+        loadNanosAvoided += entry.loadNanos;
+        bytesShared += entry.resourceBytes;
+        return new Shared<S>(key, factoryClass.cast(entry.factory));
+    }
+
+    /**
+     * Give back a factory; the pool drops it when no chain holds it any more. The factory itself
+     * stays usable by analyzers already made from it.
+     */
+    synchronized void release(Shared<?> shared) {
+        Entry entry = entries.get(shared.key);
+        if (entry == null || entry.factory != shared.factory) {
+            return;
+        }
+        if (--entry.references == 0) {
+            entries.remove(shared.key);
+            evictions++;
+            Key unloaded = shared.key.withoutResources();
+            for (Key key : entries.keySet()) {
+                if (key.withoutResources().equals(unloaded)) {
+                    return;
+                }
+            }
+            resourceNames.remove(unloaded);
+        }
+    }
+
+    /**
+     * @return the number of distinct factories held.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of factories constructed, and their resources loaded.
+     */
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    /**
+     * @return the number of times a pooled factory was handed out instead of a new one.
+     */
+    public synchronized long getShares() {
+        return shares;
+    }
+
+    /**
+     * @return the number of factories dropped because no chain held them any more.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the time spent constructing factories and loading their resources.
+     */
+    public synchronized long getLoadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(loadNanos);
+    }
+
+    /**
+     * @return the load time saved by sharing: what each shared factory took to build, per share.
+     */
+    public synchronized long getLoadMillisAvoided() {
+        return TimeUnit.NANOSECONDS.toMillis(loadNanosAvoided);
+    }
+
+    /**
+     * @return the resource bytes not loaded again because of sharing. A floor on the memory
+     * saved, since parsed word lists and maps are generally larger than their files.
+     */
+    public synchronized long getBytesShared() {
+        return bytesShared;
+    }
+
+    /**
+     * @return a short human-readable summary.
+     */
+    public synchronized String summary() {
+        return String.format("resource pool: %d factories held, %d loaded in %d ms, %d shared (%d ms and at least %d resource bytes saved), %d evicted%n",
+                entries.size(), loads, getLoadMillis(), shares, getLoadMillisAvoided(), bytesShared, evictions);
+    }
+
+    /**
+     * A loader that keeps the content of every resource it opens, so that the resources can be
+     * hashed, and read once whether they are hashed before the factory loads them or after.
+     */
+    private static final class ReadAheadLoader implements ResourceLoader {
+        private final ResourceLoader delegate;
+        private final Map<String, byte[]> contents = Maps.newTreeMap();
+        long bytesRead;
+
+        ReadAheadLoader(ResourceLoader delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * Read the named resources ahead of the factory.
+         * @return the SHA-1 of each; one that no longer opens is left out, and the factory's own
+         * attempt to load it reports the failure.
+         */
+        Map<String, String> readResources(Set<String> names) {
+            for (String name : names) {
+                try {
+                    read(name);
+                } catch (IOException e) {
+                    // left to the factory.
+                }
+            }
+            return digests();
+        }
+
+        /**
+         * @return the SHA-1 of each resource read so far.
+         */
+        Map<String, String> digests() {
+            Map<String, String> digests = Maps.newTreeMap();
+            for (Map.Entry<String, byte[]> me : contents.entrySet()) {
+                digests.put(me.getKey(), sha1(me.getValue()));
+            }
+            return ImmutableMap.copyOf(digests);
+        }
+
+        Set<String> names() {
+            return ImmutableSet.copyOf(contents.keySet());
+        }
+
+        private byte[] read(String name) throws IOException {
+            byte[] content = contents.get(name);
+            if (content != null) {
+                return content;
+            }
+            InputStream is = delegate.openResource(name);
+            try {
+                content = ByteStreams.toByteArray(is);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            contents.put(name, content);
+            bytesRead += content.length;
+            return content;
+        }
+
+        private static String sha1(byte[] content) {
+            try {
+                return Hex.encodeHexString(MessageDigest.getInstance("SHA-1").digest(content));
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public InputStream openResource(String resource) throws IOException {
+            return new ByteArrayInputStream(read(resource));
+        }
+
+        @Override
+        public <T> Class<? extends T> findClass(String cname, Class<T> expectedType) {
+            return delegate.findClass(cname, expectedType);
+        }
+
+        @Override
+        public <T> T newInstance(String cname, Class<T> expectedType) {
+            return delegate.newInstance(cname, expectedType);
+        }
+    }
+}
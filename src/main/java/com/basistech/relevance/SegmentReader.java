@@ -0,0 +1,144 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a character stream into segments for analysis, holding at most one segment's worth of
+ * text (plus what has been read ahead) in a fixed buffer. Segments end at a line break, at a
+ * blank line, or only when the buffer is full; in every mode a segment that reaches the maximum
+ * is cut at the last whitespace in its second half, or failing that wherever it stands. The
+ * boundary characters stay in the segment they end, so the segment offsets add up to positions
+ * in the original text.
+ */
+final class SegmentReader {
+    /**
+     * Where segments end.
+     */
+    enum Boundary {
+        LINE, BLANK_LINE, MAX_CHARS
+    }
+
+    private final Reader reader;
+    private final Boundary boundary;
+    private final char[] buffer;
+    private int filled;
+    private int length;
+    private long offset;
+    private boolean eof;
+    // blank-line state: the scan has seen a line break followed by nothing but whitespace.
+    private boolean atLineStart;
+
+    SegmentReader(Reader reader, Boundary boundary, int maxChars) {
+        if (maxChars < 2) {
+            throw new IllegalArgumentException("maxChars must be at least 2");
+        }
+        this.reader = reader;
+        this.boundary = boundary;
+        this.buffer = new char[maxChars];
+    }
+
+    /**
+     * Advance to the next segment.
+     * @return false at the end of the input.
+     */
+    boolean next() throws IOException {
+        if (length > 0) {
+            filled -= length;
+            System.arraycopy(buffer, length, buffer, 0, filled);
+            offset += length;
+            length = 0;
+        }
+        atLineStart = false;
+        int scan = 0;
+        while (true) {
+            int end = findBoundary(scan);
+            if (end > 0) {
+                length = end;
+                return true;
+            }
+            scan = filled;
+            if (filled == buffer.length) {
+                length = cut();
+                return true;
+            }
+            if (eof) {
+                length = filled;
+                return length > 0;
+            }
+            int count = reader.read(buffer, filled, buffer.length - filled);
+            if (count == -1) {
+                eof = true;
+            } else {
+                filled += count;
+            }
+        }
+    }
+
+    private int findBoundary(int from) {
+        if (boundary == Boundary.MAX_CHARS) {
+            return -1;
+        }
+        for (int x = from; x < filled; x++) {
+            char c = buffer[x];
+            if (c == '\n') {
+                if (boundary == Boundary.LINE || atLineStart) {
+                    return x + 1;
+                }
+                atLineStart = true;
+            } else if (atLineStart && !Character.isWhitespace(c)) {
+                atLineStart = false;
+            }
+        }
+        return -1;
+    }
+
+    private int cut() {
+        for (int x = buffer.length - 1; x >= buffer.length / 2; x--) {
+            if (Character.isWhitespace(buffer[x])) {
+                return x + 1;
+            }
+        }
+        // don't split a surrogate pair.
+        if (Character.isHighSurrogate(buffer[buffer.length - 1])) {
+            return buffer.length - 1;
+        }
+        return buffer.length;
+    }
+
+    char[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the length of the current segment, which starts at index 0 of {@link #buffer()}.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return the offset of the current segment, in chars from the start of the input.
+     */
+    long offset() {
+        return offset;
+    }
+
+    void close() throws IOException {
+        reader.close();
+    }
+}
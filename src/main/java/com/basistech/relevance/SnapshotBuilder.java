@@ -0,0 +1,364 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds a startup snapshot for a chain, in a directory of its own:
+ * <ul>
+ * <li>{@code analyzers.jar}, the resolved jars merged into one, with their service files
+ * combined, and its {@link SpiIndex} beside it;</li>
+ * <li>{@code classpath.lock}, a {@link ClasspathLock} that stands the bundle in for the
+ * resolved jars, so that {@code Driver --snapshot} neither resolves nor opens many jars;</li>
+ * <li>{@code classes.txt}, the classes loaded by a training run of the chain, in load order;</li>
+ * <li>{@code classes.jsa} and {@code jvm.options}, on JVMs that can make a dynamic class data
+ * sharing archive (Java 13 and later): the training run's classes, already parsed and verified.
+ * Start with {@code java @snapshot/jvm.options ...} to map it.</li>
+ * </ul>
+ * The training run is {@code Driver} itself, in a child JVM, over a sample input. Finally, unless
+ * told not to, the builder runs Driver with and without the snapshot and reports the time from
+ * JVM start to the first token.
+ */
+public final class SnapshotBuilder {
+    static final String BUNDLE = "analyzers.jar";
+    static final String LOCK = "classpath.lock";
+    static final String CLASSES = "classes.txt";
+    static final String ARCHIVE = "classes.jsa";
+    static final String JVM_OPTIONS = "jvm.options";
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotBuilder.class);
+    private static final String SERVICES = "META-INF/services/";
+    private static final Pattern SIGNATURE = Pattern.compile("META-INF/[^/]+\\.(SF|DSA|RSA|EC)|META-INF/INDEX\\.LIST");
+    // -verbose:class, before and after unified logging.
+    private static final Pattern LOADED_CLASS = Pattern.compile("\\[Loaded (\\S+) from |\\[class,load\\s*\\] (\\S+) source:");
+    private static final int DYNAMIC_ARCHIVE_JAVA_VERSION = 13;
+
+    private SnapshotBuilder() {
+        //
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> resolutionOptions = Lists.newArrayList();
+        boolean measure = true;
+        int argx = 0;
+        while (argx < args.length && args[argx].startsWith("--")) {
+            String arg = args[argx];
+            if ("--offline".equals(arg)) {
+                resolutionOptions.add(arg);
+            } else if ("--mirror".equals(arg) && argx < args.length - 1) {
+                resolutionOptions.add(arg);
+                resolutionOptions.add(args[++argx]);
+            } else if ("--no-measure".equals(arg)) {
+                measure = false;
+            } else {
+                usage();
+                System.exit(1);
+            }
+            argx++;
+        }
+        if (args.length - argx < 3) {
+            usage();
+            System.exit(1);
+        }
+        File snapshot = new File(args[argx++]);
+        File sample = new File(args[argx++]);
+        List<String> artifactsAndChain = Arrays.asList(args).subList(argx, args.length);
+        List<String> artifacts = Lists.newArrayList();
+        for (String arg : artifactsAndChain) {
+            if (arg.startsWith("-")) {
+                break;
+            }
+            artifacts.add(arg);
+        }
+
+        AnalyzerFactory analyzerFactory = new AnalyzerFactory();
+        analyzerFactory.setArtifacts(artifacts);
+        analyzerFactory.setOffline(resolutionOptions.contains("--offline"));
+        int mirror = resolutionOptions.indexOf("--mirror");
+        if (mirror != -1) {
+            analyzerFactory.setMirrors(Lists.newArrayList(Mirror.local(new File(resolutionOptions.get(mirror + 1)))));
+        }
+        analyzerFactory.initialize();
+
+        if (!snapshot.isDirectory() && !snapshot.mkdirs()) {
+            throw new IOException("Cannot create snapshot directory " + snapshot);
+        }
+        File bundle = new File(snapshot, BUNDLE);
+        bundle(analyzerFactory.getComponentJars(), bundle);
+        new SpiIndex(SpiIndex.defaultCacheDirectory()).services(bundle);
+        new ClasspathLock(new File(snapshot, LOCK), analyzerFactory.resolutionInputs()).write(Lists.newArrayList(bundle));
+
+        List<String> driverArgs = Lists.newArrayList(resolutionOptions);
+        driverArgs.add("--snapshot");
+        driverArgs.add(snapshot.getAbsolutePath());
+        train(snapshot, driverArgs, sample, artifactsAndChain);
+
+        if (measure) {
+            long cold = timeToFirstToken(Lists.<String>newArrayList(), resolutionOptions, sample, artifactsAndChain);
+            long warm = timeToFirstToken(snapshotJvmOptions(snapshot), driverArgs, sample, artifactsAndChain);
+            System.out.println(String.format("time to first token: %d ms without the snapshot, %d ms with it", cold, warm));
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: SnapshotBuilder [--offline] [--mirror dir] [--no-measure] snapshotDir sampleInput group:artifact:version ... -tokenizer ... [-charfilter ...] [-tokenfilter ...]");
+        System.err.println("Then: java [@snapshotDir/jvm.options] ... Driver --snapshot snapshotDir ..., with the same artifacts and mirror.");
+    }
+
+    /**
+     * Merge jars into one. The first jar to have an entry wins, except for service files, whose
+     * registrations are combined in jar order. Signatures, which no longer match, are dropped.
+     */
+    static void bundle(List<File> jars, File bundle) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        Map<String, Set<String>> services = Maps.newTreeMap();
+        Set<String> written = Sets.newHashSet(JarFile.MANIFEST_NAME, "META-INF/");
+        int duplicates = 0;
+        File temp = new File(bundle.getPath() + ".tmp");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(temp), manifest);
+        try {
+            for (File jar : jars) {
+                JarFile jarFile = new JarFile(jar);
+                try {
+                    Enumeration<JarEntry> entries = jarFile.entries();
+                    while (entries.hasMoreElements()) {
+                        JarEntry entry = entries.nextElement();
+                        String name = entry.getName();
+                        if (name.startsWith(SERVICES) && !entry.isDirectory()) {
+                            Set<String> classNames = services.get(name);
+                            if (classNames == null) {
+                                classNames = Sets.newLinkedHashSet();
+                                services.put(name, classNames);
+                            }
+                            classNames.addAll(SpiIndex.readServiceFile(jarFile.getInputStream(entry)));
+                        } else if (SIGNATURE.matcher(name).matches()) {
+                            continue;
+                        } else if (!written.add(name)) {
+                            if (!entry.isDirectory()) {
+                                duplicates++;
+                            }
+                        } else {
+                            out.putNextEntry(new JarEntry(name));
+                            InputStream is = jarFile.getInputStream(entry);
+                            try {
+                                IOUtils.copy(is, out);
+                            } finally {
+                                is.close();
+                            }
+                            out.closeEntry();
+                        }
+                    }
+                } finally {
+                    jarFile.close();
+                }
+            }
+            for (Map.Entry<String, Set<String>> me : services.entrySet()) {
+                out.putNextEntry(new JarEntry(me.getKey()));
+                out.write((Joiner.on('\n').join(me.getValue()) + "\n").getBytes(Charsets.UTF_8));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(bundle) && !(bundle.delete() && temp.renameTo(bundle))) {
+            throw new IOException("Failed to replace " + bundle);
+        }
+        LOG.info("Bundled {} jars into {}; {} duplicate entries skipped", new Object[] {jars.size(), bundle, duplicates});
+    }
+
+    /**
+     * Run the chain over the sample in a child JVM that logs each class it loads, and, where the
+     * JVM can, archives them at exit.
+     */
+    private static void train(File snapshot, List<String> driverArgs, File sample, List<String> artifactsAndChain) throws IOException, InterruptedException {
+        List<String> jvmOptions = Lists.newArrayList("-verbose:class");
+        File archive = new File(snapshot, ARCHIVE);
+        boolean archiving = false;
+        if (javaVersion() < DYNAMIC_ARCHIVE_JAVA_VERSION) {
+            LOG.info("Java {} cannot archive application classes; the snapshot has no class data archive", System.getProperty("java.version"));
+        } else if (classPathHasDirectories()) {
+            LOG.info("The class path has directories, which class data sharing refuses; the snapshot has no class data archive");
+        } else {
+            archiving = true;
+            jvmOptions.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+        }
+        Process process = startDriver(jvmOptions, driverArgs, sample, artifactsAndChain);
+        List<String> classes = Lists.newArrayList();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = LOADED_CLASS.matcher(line);
+                if (matcher.find()) {
+                    classes.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("Training run failed");
+        }
+        Files.write(Joiner.on('\n').join(classes) + "\n", new File(snapshot, CLASSES), Charsets.UTF_8);
+        LOG.info("Training run loaded {} classes", classes.size());
+
+        File options = new File(snapshot, JVM_OPTIONS);
+        if (archiving && archive.isFile()) {
+            PrintWriter writer = new PrintWriter(options, "UTF-8");
+            try {
+                // the archive is only good for the class path it was made with.
+                for (String option : snapshotJvmOptions(snapshot)) {
+                    writer.println(option.indexOf(' ') == -1 ? option : '"' + option.replace("\\", "\\\\") + '"');
+                }
+            } finally {
+                writer.close();
+            }
+        } else if (options.exists() && !options.delete()) {
+            LOG.warn("Failed to delete stale {}", options);
+        }
+    }
+
+    private static List<String> snapshotJvmOptions(File snapshot) {
+        File archive = new File(snapshot, ARCHIVE);
+        if (!archive.isFile()) {
+            return Lists.newArrayList();
+        }
+        return Lists.newArrayList("-XX:SharedArchiveFile=" + archive.getAbsolutePath(), "-cp", System.getProperty("java.class.path"));
+    }
+
+    /**
+     * @return milliseconds from JVM start to the first token, for a Driver run over the sample.
+     */
+    private static long timeToFirstToken(List<String> jvmOptions, List<String> driverArgs, File sample, List<String> artifactsAndChain) throws IOException, InterruptedException {
+        File report = File.createTempFile("startup", ".tsv");
+        try {
+            List<String> args = Lists.newArrayList(driverArgs);
+            args.add("--startup-report");
+            args.add(report.getAbsolutePath());
+            Process process = startDriver(jvmOptions, args, sample, artifactsAndChain);
+            InputStream output = process.getInputStream();
+            try {
+                IOUtils.copy(output, new NullOutputStream());
+            } finally {
+                output.close();
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("Measuring run failed");
+            }
+            for (String line : Files.readLines(report, Charsets.UTF_8)) {
+                if (line.startsWith(Driver.FIRST_TOKEN_RECORD)) {
+                    return Long.parseLong(line.substring(line.lastIndexOf('\t') + 1));
+                }
+            }
+            throw new IOException("No first token in the startup report");
+        } finally {
+            if (!report.delete()) {
+                report.deleteOnExit();
+            }
+        }
+    }
+
+    private static Process startDriver(List<String> jvmOptions, List<String> driverArgs, File sample, List<String> artifactsAndChain) throws IOException {
+        File output = File.createTempFile("snapshot", ".tokens");
+        output.deleteOnExit();
+        List<String> command = Lists.newArrayList();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmOptions);
+        if (!command.contains("-cp")) {
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+        }
+        command.add(Driver.class.getName());
+        command.addAll(driverArgs);
+        command.add(sample.getAbsolutePath());
+        command.add(output.getAbsolutePath());
+        command.addAll(artifactsAndChain);
+        LOG.debug("Running {}", command);
+        Process process = new ProcessBuilder(command).start();
+        process.getOutputStream().close();
+        // the child logs to stderr; left in the pipe, that would stall it.
+        drain(process.getErrorStream());
+        return process;
+    }
+
+    private static void drain(final InputStream stream) {
+        Thread drainer = new Thread("snapshot-stderr") {
+            @Override
+            public void run() {
+                try {
+                    IOUtils.copy(stream, System.err);
+                } catch (IOException e) {
+                    LOG.debug("Lost child output", e);
+                } finally {
+                    IOUtils.closeQuietly(stream);
+                }
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    private static boolean classPathHasDirectories() {
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (new File(entry).isDirectory()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        // 1.6, 1.7, 1.8, then 9, 10, ...
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
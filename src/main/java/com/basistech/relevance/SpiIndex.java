@@ -0,0 +1,195 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The service registrations in a jar, read from its {@code META-INF/services} once and then
+ * kept in a small index file: beside the jar when that directory is writable, otherwise in a
+ * cache directory. An index records the jar's length and timestamp, and is rebuilt when they
+ * change. Reading an index opens no jar and loads no class.
+ */
+final class SpiIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(SpiIndex.class);
+    private static final String SERVICES = "META-INF/services/";
+    private static final String SUFFIX = ".spi-index";
+    private static final String LENGTH = "jar.length";
+    private static final String MODIFIED = "jar.modified";
+    private static final String SERVICE_PREFIX = "service.";
+
+    private final File cacheDirectory;
+
+    /**
+     * @param cacheDirectory where to keep indexes for jars in directories that cannot be written.
+     */
+    SpiIndex(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    static File defaultCacheDirectory() {
+        return new File(System.getProperty("user.home"), ".rbl-relevance/spi-index");
+    }
+
+    /**
+     * @return the class names registered for each service type, in file order.
+     */
+    Map<String, List<String>> services(File jar) {
+        File beside = new File(jar.getPath() + SUFFIX);
+        File cached = new File(cacheDirectory, ClasspathLock.digest(jar.getAbsolutePath()) + SUFFIX);
+        for (File index : Arrays.asList(beside, cached)) {
+            Map<String, List<String>> services = read(index, jar);
+            if (services != null) {
+                return services;
+            }
+        }
+
+        Map<String, List<String>> services = scan(jar);
+        if (!write(beside, jar, services)) {
+            write(cached, jar, services);
+        }
+        return services;
+    }
+
+    private static Map<String, List<String>> read(File index, File jar) {
+        if (!index.isFile()) {
+            return null;
+        }
+        Properties props = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(index);
+            props.load(is);
+        } catch (IOException e) {
+            LOG.debug("Failed to read {}", index, e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        if (!Long.toString(jar.length()).equals(props.getProperty(LENGTH))
+                || !Long.toString(jar.lastModified()).equals(props.getProperty(MODIFIED))) {
+            return null;
+        }
+        Map<String, List<String>> services = Maps.newHashMap();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(SERVICE_PREFIX)) {
+                String value = props.getProperty(key);
+                services.put(key.substring(SERVICE_PREFIX.length()), value.length() == 0 ? Collections.<String>emptyList() : Arrays.asList(value.split(",")));
+            }
+        }
+        return services;
+    }
+
+    private static Map<String, List<String>> scan(File jar) {
+        Map<String, List<String>> services = Maps.newHashMap();
+        JarFile jarFile = null;
+        try {
+            jarFile = new JarFile(jar);
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.startsWith(SERVICES) && name.length() > SERVICES.length() && !entry.isDirectory()) {
+                    services.put(name.substring(SERVICES.length()), readServiceFile(jarFile.getInputStream(entry)));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the services in " + jar, e);
+        } finally {
+            if (jarFile != null) {
+                try {
+                    jarFile.close();
+                } catch (IOException e) {
+                    LOG.debug("Failed to close {}", jar, e);
+                }
+            }
+        }
+        return services;
+    }
+
+    static List<String> readServiceFile(InputStream is) throws IOException {
+        List<String> classNames = Lists.newArrayList();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, Charsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int hash = line.indexOf('#');
+                if (hash != -1) {
+                    line = line.substring(0, hash);
+                }
+                line = line.trim();
+                if (line.length() > 0) {
+                    classNames.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return classNames;
+    }
+
+    private static boolean write(File index, File jar, Map<String, List<String>> services) {
+        File parent = index.getAbsoluteFile().getParentFile();
+        if (parent == null || (!parent.isDirectory() && !parent.mkdirs()) || !parent.canWrite()) {
+            return false;
+        }
+        Properties props = new Properties();
+        props.setProperty(LENGTH, Long.toString(jar.length()));
+        props.setProperty(MODIFIED, Long.toString(jar.lastModified()));
+        for (Map.Entry<String, List<String>> me : services.entrySet()) {
+            props.setProperty(SERVICE_PREFIX + me.getKey(), Joiner.on(',').join(me.getValue()));
+        }
+        // write aside and rename, as with the classpath lock.
+        File temp = new File(index.getPath() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            props.store(os, "services in " + jar.getName());
+        } catch (IOException e) {
+            LOG.debug("Failed to write {}", index, e);
+            return false;
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        if (!temp.renameTo(index) && !(index.delete() && temp.renameTo(index))) {
+            temp.delete();
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,130 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.Maps;
+import org.apache.lucene.analysis.util.AbstractAnalysisFactory;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A name to class lookup for one kind of analysis factory, private to one class loader. It
+ * follows Lucene's own SPI naming (the class's simple name, less a suffix, in lower case; the
+ * first class for a name wins) but, unlike {@code TokenizerFactory.reloadTokenizers} and
+ * friends, it changes no static state, so lookups over different class loaders can coexist in
+ * one JVM. The service registrations are read up front, from the class loader or from a
+ * precomputed {@link SpiIndex}; each class is loaded the first time it is asked for.
+ */
+final class SpiLookup<S extends AbstractAnalysisFactory> {
+    private final Class<S> type;
+    private final ClassLoader classLoader;
+    private final Map<String, String> classNames = Maps.newLinkedHashMap();
+    private final Map<String, Class<? extends S>> classes = Maps.newHashMap();
+
+    SpiLookup(Class<S> type, String[] suffixes, ClassLoader classLoader) {
+        this.type = type;
+        this.classLoader = classLoader;
+        try {
+            Enumeration<URL> services = classLoader.getResources("META-INF/services/" + type.getName());
+            while (services.hasMoreElements()) {
+                addServices(SpiIndex.readServiceFile(services.nextElement().openStream()), suffixes);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the services for " + type.getName(), e);
+        }
+    }
+
+    /**
+     * @param serviceClassNames the registered classes, in class path order.
+     */
+    SpiLookup(Class<S> type, String[] suffixes, ClassLoader classLoader, List<String> serviceClassNames) {
+        this.type = type;
+        this.classLoader = classLoader;
+        addServices(serviceClassNames, suffixes);
+    }
+
+    private void addServices(List<String> serviceClassNames, String[] suffixes) {
+        for (String className : serviceClassNames) {
+            String name = spiName(className, suffixes);
+            if (name != null && !classNames.containsKey(name)) {
+                classNames.put(name, className);
+            }
+        }
+    }
+
+    /**
+     * @return the SPI name for a class, as Lucene derives it, or null if no suffix fits.
+     */
+    static String spiName(String className, String[] suffixes) {
+        String simpleName = className.substring(className.lastIndexOf('.') + 1);
+        simpleName = simpleName.substring(simpleName.lastIndexOf('$') + 1);
+        for (String suffix : suffixes) {
+            if (simpleName.endsWith(suffix)) {
+                return simpleName.substring(0, simpleName.length() - suffix.length()).toLowerCase(Locale.ROOT);
+            }
+        }
+        return null;
+    }
+
+    synchronized Class<? extends S> lookupClass(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        Class<? extends S> clazz = classes.get(key);
+        if (clazz == null) {
+            String className = classNames.get(key);
+            if (className == null) {
+                throw new IllegalArgumentException("A SPI class of type " + type.getName() + " with name '" + name + "' does not exist. "
+                        + "You need to add the corresponding JAR file supporting this SPI to the artifacts. "
+                        + "The current artifacts support the following names: " + classNames.keySet());
+            }
+            try {
+                clazz = Class.forName(className, true, classLoader).asSubclass(type);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("SPI class " + className + " for '" + name + "' cannot be loaded", e);
+            }
+            classes.put(key, clazz);
+        }
+        return clazz;
+    }
+
+    S newInstance(String name, Map<String, String> args) {
+        Class<? extends S> clazz = lookupClass(name);
+        try {
+            return clazz.getConstructor(Map.class).newInstance(args);
+        } catch (InvocationTargetException e) {
+            // the factories report bad options by throwing from the constructor.
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalArgumentException("Cannot instantiate SPI class " + clazz.getName(), e.getCause());
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("SPI class " + clazz.getName() + " has no constructor taking a Map", e);
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException("Cannot instantiate SPI class " + clazz.getName(), e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot instantiate SPI class " + clazz.getName(), e);
+        }
+    }
+
+    Set<String> availableServices() {
+        return classNames.keySet();
+    }
+}
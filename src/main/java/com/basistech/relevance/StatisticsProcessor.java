@@ -0,0 +1,120 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gathers {@link TermStatistics} over a set of inputs. Workers pull inputs from a shared list,
+ * as in {@link BatchProcessor}, each streaming them in segments into statistics of its own,
+ * and the workers' statistics are merged at the end.
+ */
+final class StatisticsProcessor {
+    private static final Logger LOG = LoggerFactory.getLogger(StatisticsProcessor.class);
+
+    private final AnalyzerFactory analyzerFactory;
+    private final int threads;
+    private final SegmentReader.Boundary boundary;
+    private final int maxSegmentChars;
+    private final int sketchWidth;
+    private final int topK;
+
+    /**
+     * @param sketchWidth the count-min sketch width for constant-memory statistics, or 0 for exact statistics.
+     */
+    StatisticsProcessor(AnalyzerFactory analyzerFactory, int threads, SegmentReader.Boundary boundary, int maxSegmentChars, int sketchWidth, int topK) {
+        this.analyzerFactory = analyzerFactory;
+        this.threads = threads;
+        this.boundary = boundary;
+        this.maxSegmentChars = maxSegmentChars;
+        this.sketchWidth = sketchWidth;
+        this.topK = topK;
+    }
+
+    TermStatistics process(final List<BatchProcessor.Input> inputs) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        int workers = Math.max(1, Math.min(threads, inputs.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        List<Future<TermStatistics>> futures = Lists.newArrayList();
+        long start = System.nanoTime();
+        for (int w = 0; w < workers; w++) {
+            futures.add(executor.submit(new Callable<TermStatistics>() {
+                @Override
+                public TermStatistics call() throws IOException {
+                    return work(inputs, next);
+                }
+            }));
+        }
+        executor.shutdown();
+        TermStatistics total = null;
+        try {
+            for (Future<TermStatistics> future : futures) {
+                TermStatistics statistics = future.get();
+                if (total == null) {
+                    total = statistics;
+                } else {
+                    total.merge(statistics);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Statistics worker failed", e.getCause());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(String.format("%d documents, %d tokens in %.2fs on %d threads: %.1f tokens/sec",
+                total.getDocuments(), total.getTokens(), seconds, workers, total.getTokens() / seconds));
+        return total;
+    }
+
+    private TermStatistics work(List<BatchProcessor.Input> inputs, AtomicInteger next) throws IOException {
+        TermStatistics statistics = sketchWidth > 0 ? new TermStatistics(sketchWidth, topK) : new TermStatistics();
+        Analyzer analyzer = analyzerFactory.newAnalyzer();
+        try {
+            StreamingProcessor processor = new StreamingProcessor(analyzer);
+            int index;
+            while ((index = next.getAndIncrement()) < inputs.size()) {
+                BatchProcessor.Input input = inputs.get(index);
+                Reader reader = null;
+                try {
+                    reader = Inputs.openReader(input.file);
+                    processor.process(new SegmentReader(reader, boundary, maxSegmentChars), statistics);
+                } catch (IOException e) {
+                    LOG.error("Failed to analyze {}", input.file, e);
+                } finally {
+                    IOUtils.closeQuietly(reader);
+                }
+            }
+        } finally {
+            analyzer.close();
+        }
+        return statistics;
+    }
+}
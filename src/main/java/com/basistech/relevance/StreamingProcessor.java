@@ -0,0 +1,64 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+
+/**
+ * Analyzes an input of any size one segment at a time, so memory use is bounded by the segment
+ * size rather than the input. Token offsets are passed to the sink relative to the whole input.
+ */
+final class StreamingProcessor {
+    private final Analyzer analyzer;
+    private long segments;
+    private long tokens;
+
+    StreamingProcessor(Analyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    void process(SegmentReader input, TokenSink sink) throws IOException {
+        sink.startDocument(null);
+        while (input.next()) {
+            segments++;
+            long base = input.offset();
+            TokenStream stream = analyzer.tokenStream("dummy", new CharArrayReader(input.buffer(), 0, input.length()));
+            try {
+                sink.bind(stream);
+                stream.reset();
+                while (stream.incrementToken()) {
+                    sink.token(base);
+                    tokens++;
+                }
+                stream.end();
+            } finally {
+                stream.close();
+            }
+        }
+        sink.endDocument();
+    }
+
+    long getSegments() {
+        return segments;
+    }
+
+    long getTokens() {
+        return tokens;
+    }
+}
@@ -0,0 +1,112 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+/**
+ * Constant-memory summary of a term stream: a count-min sketch for the frequency of any term,
+ * and a HyperLogLog for the number of distinct terms. Both are fed the 64-bit term hash from
+ * {@link CharTermCounts#hash(char[], int, int)}, and both merge by combining cells, so
+ * sketches of the same shape built in parallel add up to the sketch of the whole.
+ */
+final class TermSketch {
+    private static final int DEPTH = 4;
+    private static final int REGISTER_BITS = 14;
+
+    private final int width;
+    private final long[] cells;
+    private final byte[] registers = new byte[1 << REGISTER_BITS];
+
+    /**
+     * @param width cells per row, rounded up to a power of two; the error in a count is about
+     * e / width of the total count.
+     */
+    TermSketch(int width) {
+        int w = Integer.highestOneBit(Math.max(16, width));
+        this.width = w < width ? w << 1 : w;
+        cells = new long[DEPTH * this.width];
+    }
+
+    /**
+     * Count one occurrence.
+     * @return the term's estimated count, including this one.
+     */
+    long add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int cell = row * width + ((h1 + row * h2) & (width - 1));
+            long count = ++cells[cell];
+            if (count < estimate) {
+                estimate = count;
+            }
+        }
+        int register = (int) (hash >>> (64 - REGISTER_BITS));
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << REGISTER_BITS) | (1L << (REGISTER_BITS - 1))) + 1);
+        if (rank > registers[register]) {
+            registers[register] = rank;
+        }
+        return estimate;
+    }
+
+    long estimate(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, cells[row * width + ((h1 + row * h2) & (width - 1))]);
+        }
+        return estimate;
+    }
+
+    /**
+     * @return the estimated number of distinct terms, within a percent or two.
+     */
+    long distinct() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // linear counting is better while many registers are still empty.
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    void merge(TermSketch other) {
+        if (other.width != width) {
+            throw new IllegalArgumentException("Sketches differ in width");
+        }
+        for (int x = 0; x < cells.length; x++) {
+            cells[x] += other.cells[x];
+        }
+        for (int x = 0; x < registers.length; x++) {
+            if (other.registers[x] > registers[x]) {
+                registers[x] = other.registers[x];
+            }
+        }
+    }
+
+    long estimatedBytes() {
+        return 8L * cells.length + registers.length;
+    }
+}
@@ -0,0 +1,206 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import com.google.common.collect.Maps;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.AttributeSource;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * A token sink that keeps statistics rather than tokens: counts of documents and tokens, the
+ * vocabulary with the most frequent terms, the distribution of token types and a histogram of
+ * term lengths. Terms are counted straight from the term attribute's buffer.
+ * <p>
+ * Exact statistics keep every distinct term. Sketched statistics keep constant memory instead:
+ * a {@link TermSketch} estimates the frequencies and the vocabulary size, and only a bounded
+ * set of heavy-hitter candidates is kept by term.
+ * <p>
+ * Each worker fills its own instance; {@link #merge(TermStatistics)} combines them.
+ */
+final class TermStatistics implements TokenSink {
+    private static final int MAX_LENGTH = 64;
+    private static final int MIN_CANDIDATES = 1024;
+
+    private final TermSketch sketch;
+    private final int maxCandidates;
+    // every term when exact; the heavy-hitter candidates, with estimated counts, when sketched.
+    private final CharTermCounts terms = new CharTermCounts();
+    private long candidateThreshold;
+    private final Map<String, long[]> types = Maps.newHashMap();
+    private final long[] lengths = new long[MAX_LENGTH + 1];
+    private long documents;
+    private long tokens;
+    private CharTermAttribute term;
+    private TypeAttribute type;
+
+    /**
+     * Exact statistics.
+     */
+    TermStatistics() {
+        sketch = null;
+        maxCandidates = 0;
+    }
+
+    /**
+     * Sketched statistics.
+     * @param sketchWidth the width of the count-min sketch.
+     * @param topK the number of top terms wanted; a few times this many candidates are kept.
+     */
+    TermStatistics(int sketchWidth, int topK) {
+        sketch = new TermSketch(sketchWidth);
+        maxCandidates = Math.max(MIN_CANDIDATES, 4 * topK);
+    }
+
+    @Override
+    public void startDocument(String name) {
+        documents++;
+    }
+
+    @Override
+    public void bind(AttributeSource attributes) {
+        term = attributes.addAttribute(CharTermAttribute.class);
+        type = attributes.addAttribute(TypeAttribute.class);
+    }
+
+    @Override
+    public void token(long offsetBase) {
+        tokens++;
+        char[] buffer = term.buffer();
+        int length = term.length();
+        lengths[Math.min(length, MAX_LENGTH)]++;
+        long[] typeCount = types.get(type.type());
+        if (typeCount == null) {
+            typeCount = new long[1];
+            types.put(type.type(), typeCount);
+        }
+        typeCount[0]++;
+
+        long hash = CharTermCounts.hash(buffer, 0, length);
+        if (sketch == null) {
+            terms.add(buffer, 0, length, (int) hash, 1);
+            return;
+        }
+        long estimate = sketch.add(hash);
+        if (estimate > candidateThreshold || terms.find(buffer, 0, length, (int) hash) >= 0) {
+            terms.set(buffer, 0, length, (int) hash, estimate);
+            if (terms.size() >= 2 * maxCandidates) {
+                candidateThreshold = terms.retainTop(maxCandidates);
+            }
+        }
+    }
+
+    @Override
+    public void endDocument() {
+        //
+    }
+
+    @Override
+    public void close() {
+        //
+    }
+
+    /**
+     * Add another worker's statistics into these.
+     */
+    void merge(TermStatistics other) {
+        documents += other.documents;
+        tokens += other.tokens;
+        for (int x = 0; x < lengths.length; x++) {
+            lengths[x] += other.lengths[x];
+        }
+        for (Map.Entry<String, long[]> me : other.types.entrySet()) {
+            long[] count = types.get(me.getKey());
+            if (count == null) {
+                types.put(me.getKey(), me.getValue().clone());
+            } else {
+                count[0] += me.getValue()[0];
+            }
+        }
+        CharTermCounts otherTerms = other.terms;
+        if (sketch == null) {
+            for (int entry = 0; entry < otherTerms.size(); entry++) {
+                terms.add(otherTerms.pool(), otherTerms.start(entry), otherTerms.length(entry), otherTerms.hash(entry), otherTerms.count(entry));
+            }
+            return;
+        }
+        sketch.merge(other.sketch);
+        // re-estimate every candidate from either side against the merged sketch.
+        for (int entry = 0; entry < otherTerms.size(); entry++) {
+            terms.set(otherTerms.pool(), otherTerms.start(entry), otherTerms.length(entry), otherTerms.hash(entry), 0);
+        }
+        for (int entry = 0; entry < terms.size(); entry++) {
+            char[] pool = terms.pool();
+            long hash = CharTermCounts.hash(pool, terms.start(entry), terms.length(entry));
+            terms.set(pool, terms.start(entry), terms.length(entry), (int) hash, sketch.estimate(hash));
+        }
+        candidateThreshold = terms.retainTop(maxCandidates);
+    }
+
+    long getDocuments() {
+        return documents;
+    }
+
+    long getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @return the number of distinct terms; an estimate when sketched.
+     */
+    long getVocabularySize() {
+        return sketch == null ? terms.size() : sketch.distinct();
+    }
+
+    long estimatedBytes() {
+        return terms.estimatedBytes() + (sketch == null ? 0 : sketch.estimatedBytes());
+    }
+
+    void report(PrintWriter out, int topK) {
+        String approximately = sketch == null ? "" : "~";
+        out.println(String.format("documents\t%d", documents));
+        out.println(String.format("tokens\t%d", tokens));
+        out.println(String.format("vocabulary\t%s%d", approximately, getVocabularySize()));
+        long totalLength = 0;
+        for (int x = 0; x < lengths.length; x++) {
+            totalLength += x * lengths[x];
+        }
+        out.println(String.format("mean length\t%.2f", tokens == 0 ? 0.0 : (double) totalLength / tokens));
+        out.println(String.format("memory KB\t%d", estimatedBytes() / 1024));
+
+        out.println(String.format("# top %d terms%s", topK, sketch == null ? "" : " (estimated counts)"));
+        for (int entry : terms.top(topK)) {
+            out.println(String.format("%s\t%s%d\t%.4f%%", terms.term(entry), approximately, terms.count(entry), share(terms.count(entry))));
+        }
+        out.println("# types");
+        for (Map.Entry<String, long[]> me : types.entrySet()) {
+            out.println(String.format("%s\t%d\t%.4f%%", me.getKey(), me.getValue()[0], share(me.getValue()[0])));
+        }
+        out.println("# term lengths");
+        for (int x = 0; x < lengths.length; x++) {
+            if (lengths[x] != 0) {
+                out.println(String.format("%s\t%d\t%.4f%%", x == MAX_LENGTH ? MAX_LENGTH + "+" : Integer.toString(x), lengths[x], share(lengths[x])));
+            }
+        }
+        out.flush();
+    }
+
+    private double share(long count) {
+        return tokens == 0 ? 0 : 100.0 * count / tokens;
+    }
+}
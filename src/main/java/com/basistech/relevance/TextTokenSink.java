@@ -0,0 +1,95 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.FlagsAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.AttributeSource;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The original Driver output: a line per token of term and type, separated by tabs, followed by
+ * whichever of offsets, position increment and flags were asked for. Named documents are
+ * introduced by a {@code #doc} line.
+ */
+final class TextTokenSink implements TokenSink {
+    private final Writer writer;
+    private final int fields;
+    private CharTermAttribute charTerm;
+    private TypeAttribute type;
+    private OffsetAttribute offset;
+    private PositionIncrementAttribute positionIncrement;
+    private FlagsAttribute flags;
+
+    TextTokenSink(Writer writer, int fields) {
+        this.writer = writer;
+        this.fields = fields;
+    }
+
+    @Override
+    public void startDocument(String name) throws IOException {
+        if (name != null) {
+            writer.write("#doc\t");
+            writer.write(name);
+            writer.write('\n');
+        }
+    }
+
+    @Override
+    public void bind(AttributeSource attributes) {
+        charTerm = attributes.addAttribute(CharTermAttribute.class);
+        type = attributes.addAttribute(TypeAttribute.class);
+        offset = attributes.addAttribute(OffsetAttribute.class);
+        positionIncrement = attributes.addAttribute(PositionIncrementAttribute.class);
+        flags = attributes.addAttribute(FlagsAttribute.class);
+    }
+
+    @Override
+    public void token(long offsetBase) throws IOException {
+        writer.write(charTerm.buffer(), 0, charTerm.length());
+        writer.write('\t');
+        writer.write(type.type());
+        if ((fields & OFFSETS) != 0) {
+            writer.write('\t');
+            writer.write(Long.toString(offsetBase + offset.startOffset()));
+            writer.write('\t');
+            writer.write(Long.toString(offsetBase + offset.endOffset()));
+        }
+        if ((fields & POSITIONS) != 0) {
+            writer.write('\t');
+            writer.write(Integer.toString(positionIncrement.getPositionIncrement()));
+        }
+        if ((fields & FLAGS) != 0) {
+            writer.write('\t');
+            writer.write(Integer.toString(flags.getFlags()));
+        }
+        writer.write('\n');
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        // nothing marks the end of a document in text.
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,214 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The tokens from one analysis, in parallel primitive arrays: terms packed into one char
+ * array, and int arrays of term ends, offsets and position increments. Immutable once built.
+ */
+public final class TokenBatch {
+    private static final int[] NO_INTS = new int[0];
+    private static final String[] NO_TYPES = new String[0];
+    private static final char[] NO_CHARS = new char[0];
+
+    private final int size;
+    private final char[] termChars;
+    private final int[] termEnds;
+    private final int[] startOffsets;
+    private final int[] endOffsets;
+    private final int[] positionIncrements;
+    private final String[] types;
+    private final int finalOffset;
+
+    private TokenBatch(Builder builder) {
+        size = builder.size;
+        termChars = Arrays.copyOf(builder.termChars, builder.termLength);
+        termEnds = Arrays.copyOf(builder.termEnds, size);
+        startOffsets = Arrays.copyOf(builder.startOffsets, size);
+        endOffsets = Arrays.copyOf(builder.endOffsets, size);
+        positionIncrements = Arrays.copyOf(builder.positionIncrements, size);
+        types = Arrays.copyOf(builder.types, size);
+        finalOffset = builder.finalOffset;
+    }
+
+    /**
+     * Run text through an analyzer and keep the tokens.
+     */
+    public static TokenBatch analyze(Analyzer analyzer, String fieldName, String text) throws IOException {
+        TokenStream stream = analyzer.tokenStream(fieldName, text);
+        try {
+            return record(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Consume a token stream, from reset to end; the caller closes it.
+     */
+    public static TokenBatch record(TokenStream stream) throws IOException {
+        Builder builder = new Builder(stream);
+        stream.reset();
+        while (stream.incrementToken()) {
+            builder.add();
+        }
+        stream.end();
+        builder.finalOffset = builder.offset.endOffset();
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String term(int index) {
+        int start = termStart(index);
+        return new String(termChars, start, termEnds[index] - start);
+    }
+
+    /**
+     * @return the shared array holding every term; see {@link #termStart(int)}.
+     */
+    public char[] termBuffer() {
+        return termChars;
+    }
+
+    public int termStart(int index) {
+        return index == 0 ? 0 : termEnds[index - 1];
+    }
+
+    public int termLength(int index) {
+        return termEnds[index] - termStart(index);
+    }
+
+    public String type(int index) {
+        return types[index];
+    }
+
+    public int startOffset(int index) {
+        return startOffsets[index];
+    }
+
+    public int endOffset(int index) {
+        return endOffsets[index];
+    }
+
+    public int positionIncrement(int index) {
+        return positionIncrements[index];
+    }
+
+    /**
+     * @return the offset reported at the end of the stream.
+     */
+    public int finalOffset() {
+        return finalOffset;
+    }
+
+    /**
+     * @return a rough count of the bytes this holds, for weighing it in caches. The type strings
+     * are shared with the tokenizer, so only the references count.
+     */
+    public long estimatedBytes() {
+        return 64 + 2L * termChars.length + 20L * size;
+    }
+
+    /**
+     * Copy the tokens into a stream's attributes, one per call.
+     */
+    static final class Player {
+        private final CharTermAttribute term;
+        private final OffsetAttribute offset;
+        private final PositionIncrementAttribute positionIncrement;
+        private final TypeAttribute type;
+
+        Player(TokenStream stream) {
+            term = stream.addAttribute(CharTermAttribute.class);
+            offset = stream.addAttribute(OffsetAttribute.class);
+            positionIncrement = stream.addAttribute(PositionIncrementAttribute.class);
+            type = stream.addAttribute(TypeAttribute.class);
+        }
+
+        void play(TokenBatch batch, int index, int offsetBase) {
+            int start = batch.termStart(index);
+            term.copyBuffer(batch.termChars, start, batch.termEnds[index] - start);
+            offset.setOffset(offsetBase + batch.startOffsets[index], offsetBase + batch.endOffsets[index]);
+            positionIncrement.setPositionIncrement(batch.positionIncrements[index]);
+            type.setType(batch.types[index]);
+        }
+    }
+
+    /**
+     * Accumulates tokens from a stream's attributes.
+     */
+    static final class Builder {
+        private final CharTermAttribute term;
+        private final OffsetAttribute offset;
+        private final PositionIncrementAttribute positionIncrement;
+        private final TypeAttribute type;
+        private int size;
+        private char[] termChars = NO_CHARS;
+        private int termLength;
+        private int[] termEnds = NO_INTS;
+        private int[] startOffsets = NO_INTS;
+        private int[] endOffsets = NO_INTS;
+        private int[] positionIncrements = NO_INTS;
+        private String[] types = NO_TYPES;
+        private int finalOffset;
+
+        Builder(TokenStream stream) {
+            term = stream.addAttribute(CharTermAttribute.class);
+            offset = stream.addAttribute(OffsetAttribute.class);
+            positionIncrement = stream.addAttribute(PositionIncrementAttribute.class);
+            type = stream.addAttribute(TypeAttribute.class);
+        }
+
+        void add() {
+            if (size == termEnds.length) {
+                int capacity = Math.max(8, size * 2);
+                termEnds = Arrays.copyOf(termEnds, capacity);
+                startOffsets = Arrays.copyOf(startOffsets, capacity);
+                endOffsets = Arrays.copyOf(endOffsets, capacity);
+                positionIncrements = Arrays.copyOf(positionIncrements, capacity);
+                types = Arrays.copyOf(types, capacity);
+            }
+            int length = term.length();
+            if (termLength + length > termChars.length) {
+                termChars = Arrays.copyOf(termChars, Math.max(32, Math.max(termLength + length, termChars.length * 2)));
+            }
+            System.arraycopy(term.buffer(), 0, termChars, termLength, length);
+            termLength += length;
+            termEnds[size] = termLength;
+            startOffsets[size] = offset.startOffset();
+            endOffsets[size] = offset.endOffset();
+            positionIncrements[size] = positionIncrement.getPositionIncrement();
+            types[size] = type.type();
+            size++;
+        }
+
+        TokenBatch build() {
+            return new TokenBatch(this);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/******************************************************************************
+ ** This data and information is proprietary to, and a valuable trade secret
+ ** of, Basis Technology Corp.  It is given in confidence by Basis Technology
+ ** and may only be used as permitted under the license agreement under which
+ ** it has been distributed, and in no other way.
+ **
+ ** Copyright (c) 2013 Basis Technology Corporation All rights reserved.
+ **
+ ** The technical data and information provided herein are provided with
+ ** `limited rights', and the computer software provided herein is provided
+ ** with `restricted rights' as those terms are defined in DAR and ASPR
+ ** 7-104.9(a).
+ ******************************************************************************/
+
+package com.basistech.relevance;
+
+import org.apache.lucene.util.AttributeSource;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for analyzed tokens. The caller binds the sink to each token stream before
+ * consuming it, then calls {@link #token(long)} once per token while the attributes hold it.
+ */
+interface TokenSink extends Closeable {
+    /** Also record start and end offsets. */
+    int OFFSETS = 1;
+    /** Also record position increments. */
+    int POSITIONS = 2;
+    /** Also record token flags. */
+    int FLAGS = 4;
+
+    /**
+     * @param name the document name, or null for an anonymous document.
+     */
+    void startDocument(String name) throws IOException;
+
+    /**
+     * Pick up the attributes of a token stream; they are added if the stream lacks them.
+     */
+    void bind(AttributeSource attributes);
+
+    /**
+     * Record the current token of the bound stream.
+     * @param offsetBase added to the token's offsets, for streams that analyze part of a larger text.
+     */
+    void token(long offsetBase) throws IOException;
+
+    void endDocument() throws IOException;
+}
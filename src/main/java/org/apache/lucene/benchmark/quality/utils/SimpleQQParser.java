@@ -17,8 +17,19 @@
  */
 package org.apache.lucene.benchmark.quality.utils;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.benchmark.quality.QualityQuery;
 import org.apache.lucene.benchmark.quality.QualityQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
@@ -27,18 +38,30 @@ import org.apache.lucene.queryparser.classic.QueryParserBase;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
 /**
  * Simplistic quality query parser. A Lucene query is created by passing 
  * the value of the specified QualityQuery name-value pair(s) into 
- * a Lucene's QueryParser using StandardAnalyzer. */
+ * a Lucene's QueryParser using StandardAnalyzer.
+ * <p>
+ * Since every value is escaped, the QueryParser grammar does nothing but split
+ * on whitespace; by default the values are instead analyzed directly, building
+ * the same term and boolean queries that QueryParser would. Parsed values are
+ * kept in a bounded cache keyed by field and text. */
 public class SimpleQQParser implements QualityQueryParser {
 
+  /** Default number of parsed values to cache. */
+  public static final int DEFAULT_CACHE_SIZE = 1024;
+
   private String qqNames[];
   private String indexField;
   private Analyzer analyzer;
   ThreadLocal<QueryParser> queryParser = new ThreadLocal<QueryParser>();
+  private boolean useQueryParser;
+  private final QueryCache cache = new QueryCache(DEFAULT_CACHE_SIZE);
 
   /**
    * Constructor of a simple qq parser.
@@ -70,21 +93,217 @@ public class SimpleQQParser implements QualityQueryParser {
     this(new String[] { qqName }, indexField);
   }
 
+  /**
+   * Use the classic QueryParser rather than analyzing values directly. The
+   * difference is that QueryParser treats the words AND, OR and NOT as operators,
+   * which escaping does not prevent.
+   */
+  public void setUseQueryParser(boolean useQueryParser) {
+    this.useQueryParser = useQueryParser;
+  }
+
+  public boolean getUseQueryParser() {
+    return useQueryParser;
+  }
+
+  /**
+   * Set the number of parsed values to cache; 0 disables the cache.
+   */
+  public void setCacheSize(int cacheSize) {
+    cache.setMaxSize(cacheSize);
+  }
+
+  public int getCacheSize() {
+    return cache.getMaxSize();
+  }
+
   /* (non-Javadoc)
    * @see org.apache.lucene.benchmark.quality.QualityQueryParser#parse(org.apache.lucene.benchmark.quality.QualityQuery)
    */
   @Override
   public Query parse(QualityQuery qq) throws ParseException {
+    BooleanQuery bq = new BooleanQuery();
+    for (int i = 0; i < qqNames.length; i++)
+      bq.add(parseValue(qq.getValue(qqNames[i])), BooleanClause.Occur.SHOULD);
+    
+    return bq;
+  }
+
+  private Query parseValue(String value) throws ParseException {
+    String key = useQueryParser + "\u0000" + indexField + "\u0000" + value;
+    Query q = cache.get(key);
+    if (q == null) {
+      q = useQueryParser ? parseWithQueryParser(value) : analyze(value);
+      cache.put(key, q);
+    }
+    // the cached query is never handed out, since callers may change it or its clauses.
+    return copy(q);
+  }
+
+  /**
+   * Copy a query down to its leaves. BooleanQuery.clone() shares its clauses,
+   * which are themselves mutable; the leaves built here are term queries, which
+   * clone() copies completely.
+   */
+  private static Query copy(Query q) {
+    if (!(q instanceof BooleanQuery)) {
+      return q.clone();
+    }
+    BooleanQuery bq = (BooleanQuery) q;
+    BooleanQuery copy = new BooleanQuery(bq.isCoordDisabled());
+    copy.setBoost(bq.getBoost());
+    copy.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+    for (BooleanClause clause : bq.clauses()) {
+      copy.add(copy(clause.getQuery()), clause.getOccur());
+    }
+    return copy;
+  }
+
+  private Query parseWithQueryParser(String value) throws ParseException {
     QueryParser qp = queryParser.get();
     if (qp==null) {
       qp = new QueryParser(Version.LUCENE_CURRENT, indexField, analyzer);
       queryParser.set(qp);
     }
-    BooleanQuery bq = new BooleanQuery();
-    for (int i = 0; i < qqNames.length; i++)
-      bq.add(qp.parse(QueryParserBase.escape(qq.getValue(qqNames[i]))), BooleanClause.Occur.SHOULD);
-    
+    return qp.parse(QueryParserBase.escape(value));
+  }
+
+  /**
+   * Build what QueryParser would from an escaped value: each whitespace
+   * separated chunk is analyzed on its own, and the chunks are OR'ed together.
+   */
+  private Query analyze(String value) throws ParseException {
+    List<Query> clauses = new ArrayList<Query>();
+    boolean firstChunk = true;
+    Query firstQuery = null;
+    int start = -1;
+    for (int i = 0; i <= value.length(); i++) {
+      if (i == value.length() || isQueryParserWhitespace(value.charAt(i))) {
+        if (start >= 0) {
+          Query q = analyzeChunk(value.substring(start, i));
+          if (firstChunk) {
+            firstQuery = q;
+            firstChunk = false;
+          }
+          if (q != null) {
+            clauses.add(q);
+          }
+          start = -1;
+        }
+      } else if (start < 0) {
+        start = i;
+      }
+    }
+    // QueryParser only unwraps a lone clause when it came from the first chunk.
+    if (clauses.size() == 1 && firstQuery != null) {
+      return firstQuery;
+    }
+    BooleanQuery bq = new BooleanQuery(false);
+    for (Query q : clauses) {
+      bq.add(q, BooleanClause.Occur.SHOULD);
+    }
+    return bq;
+  }
+
+  private static boolean isQueryParserWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\u3000';
+  }
+
+  /**
+   * As QueryParserBase.newFieldQuery, unquoted, without automatic phrases:
+   * a term, a coord-free OR of terms at one position, or an OR over positions.
+   */
+  private Query analyzeChunk(String chunk) throws ParseException {
+    List<List<Term>> positions = new ArrayList<List<Term>>();
+    try {
+      TokenStream ts = analyzer.tokenStream(indexField, new StringReader(chunk));
+      try {
+        if (!ts.hasAttribute(TermToBytesRefAttribute.class)) {
+          throw new ParseException("The analyzer for field " + indexField
+              + " produces no term attribute; cannot build a query from " + chunk);
+        }
+        TermToBytesRefAttribute termAtt = ts.getAttribute(TermToBytesRefAttribute.class);
+        PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+        BytesRef bytes = termAtt.getBytesRef();
+        ts.reset();
+        while (ts.incrementToken()) {
+          termAtt.fillBytesRef();
+          Term term = new Term(indexField, BytesRef.deepCopyOf(bytes));
+          if (posIncAtt.getPositionIncrement() != 0 || positions.isEmpty()) {
+            positions.add(new ArrayList<Term>());
+          }
+          positions.get(positions.size() - 1).add(term);
+        }
+        ts.end();
+      } finally {
+        ts.close();
+      }
+    } catch (IOException e) {
+      ParseException p = new ParseException("Cannot analyze " + chunk);
+      p.initCause(e);
+      throw p;
+    }
+    if (positions.isEmpty()) {
+      return null;
+    }
+    if (positions.size() == 1) {
+      return position(positions.get(0));
+    }
+    BooleanQuery bq = new BooleanQuery(false);
+    for (List<Term> position : positions) {
+      bq.add(position(position), BooleanClause.Occur.SHOULD);
+    }
+    return bq;
+  }
+
+  private static Query position(List<Term> terms) {
+    if (terms.size() == 1) {
+      return new TermQuery(terms.get(0));
+    }
+    BooleanQuery bq = new BooleanQuery(true);
+    for (Term term : terms) {
+      bq.add(new TermQuery(term), BooleanClause.Occur.SHOULD);
+    }
     return bq;
   }
 
+  /**
+   * A bounded, least recently used cache of parsed values.
+   */
+  private static final class QueryCache {
+    private final Map<String,Query> map;
+    private int maxSize;
+
+    QueryCache(int maxSize) {
+      this.maxSize = maxSize;
+      this.map = new LinkedHashMap<String,Query>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Query> eldest) {
+          return size() > QueryCache.this.maxSize;
+        }
+      };
+    }
+
+    synchronized Query get(String key) {
+      return map.get(key);
+    }
+
+    synchronized void put(String key, Query q) {
+      if (maxSize > 0) {
+        map.put(key, q);
+      }
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+      this.maxSize = maxSize;
+      while (map.size() > maxSize) {
+        map.remove(map.keySet().iterator().next());
+      }
+    }
+
+    synchronized int getMaxSize() {
+      return maxSize;
+    }
+  }
+
 }